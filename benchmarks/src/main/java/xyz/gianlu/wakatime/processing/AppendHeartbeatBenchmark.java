@@ -0,0 +1,50 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link Wakatime#appendHeartbeat} when the heartbeat is throttled and when it is queued.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendHeartbeatBenchmark {
+    private static final int FILES = 64;
+    private Wakatime wakatime;
+    private String[] paths;
+    private long timestamp;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        // Flushes only happen because of the batch size, handled by the no-op sender in the background
+        BenchmarkEnvironment.setup("flush_max_batch = 1000", "flush_max_age = 3600", "flush_write_delay = 3600");
+        wakatime = new Wakatime(new BenchmarkEnvironment.NoopSender());
+
+        paths = new String[FILES];
+        for (int i = 0; i < FILES; i++) paths[i] = "/home/user/sketchbook/Sketch/Tab" + i + ".pde";
+
+        timestamp = System.currentTimeMillis() / 1000;
+        wakatime.appendHeartbeat("Sketch", paths[0], "Java", false, timestamp, -1, -1);
+    }
+
+    @Benchmark
+    public void throttled() {
+        wakatime.appendHeartbeat("Sketch", paths[0], "Java", false, timestamp, -1, -1);
+    }
+
+    @Benchmark
+    public void unthrottledWrite() {
+        wakatime.appendHeartbeat("Sketch", paths[0], "Java", true, timestamp, -1, -1);
+    }
+
+    @Benchmark
+    public void unthrottledTabSwitch() {
+        wakatime.appendHeartbeat("Sketch", paths[next++ & (FILES - 1)], "Java", false, timestamp, -1, -1);
+    }
+}
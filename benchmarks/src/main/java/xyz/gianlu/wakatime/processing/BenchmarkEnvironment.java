@@ -0,0 +1,81 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sets up a throwaway home folder with a config file and a fake wakatime-cli, so that benchmarks never touch
+ * the real configuration or the network. Must be called before anything reads the config or the resources
+ * location, since both are cached.
+ */
+final class BenchmarkEnvironment {
+    static final String API_KEY = "00000000-0000-0000-0000-000000000000";
+
+    private BenchmarkEnvironment() {
+    }
+
+    @NotNull
+    static File setup(@NotNull String... settings) throws IOException {
+        Path home = Files.createTempDirectory("wakatime-bench");
+        System.setProperty("user.home", home.toString());
+
+        List<String> config = new ArrayList<>();
+        config.add("[settings]");
+        config.add("api_key = " + API_KEY);
+        config.addAll(Arrays.asList(settings));
+        Files.write(home.resolve(".wakatime.cfg"), config, StandardCharsets.UTF_8);
+
+        // Fake CLI that accepts the arguments and reads the extra heartbeats, without sending anything
+        Path cli = home.resolve(".wakatime").resolve("wakatime-master").resolve("wakatime");
+        Files.createDirectories(cli);
+        Files.write(cli.resolve("__init__.py"), new byte[0]);
+        Files.write(cli.resolve("main.py"), Arrays.asList(
+                "import sys",
+                "def execute(argv):",
+                "    if '--extra-heartbeats' in argv:",
+                "        sys.stdin.readline()",
+                "    return 0"), StandardCharsets.UTF_8);
+        Files.write(cli.resolve("cli.py"), Arrays.asList(
+                "import os",
+                "import sys",
+                "sys.path.insert(0, os.path.dirname(os.path.dirname(os.path.abspath(__file__))))",
+                "from wakatime.main import execute",
+                "if __name__ == '__main__':",
+                "    sys.exit(execute(sys.argv[1:]))"), StandardCharsets.UTF_8);
+
+        return home.toFile();
+    }
+
+    @NotNull
+    static HeartbeatBatch batch(int size) {
+        HeartbeatBatch batch = new HeartbeatBatch(new HeartbeatBatch.Dictionary());
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < size; i++)
+            batch.add("/home/user/sketchbook/Sketch" + (i % 4) + "/Tab" + (i % 7) + ".pde", now + i, i % 10 == 0, "Sketch" + (i % 4), "Java");
+
+        return batch;
+    }
+
+    /**
+     * Accepts everything without sending it anywhere.
+     */
+    static final class NoopSender implements HeartbeatSender {
+        volatile long sent = 0;
+
+        @NotNull
+        @Override
+        public CompletableFuture<SendResult> send(@NotNull HeartbeatBatch batch) {
+            sent += batch.size();
+            return CompletableFuture.completedFuture(SendResult.SUCCESS);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the CLI command line and of serializing the extra heartbeats.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CliCommandBenchmark {
+    @Param({"1", "100", "10000"})
+    public int size;
+    private CliSender sender;
+    private HeartbeatBatch batch;
+    private CharArrayWriter out;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkEnvironment.setup("cli_worker = false");
+        sender = new CliSender(new Metrics(() -> 0));
+        batch = BenchmarkEnvironment.batch(size);
+        out = new CharArrayWriter(size * 128);
+
+        // Resolve the python location once, outside of the measurement
+        Dependencies.getPythonLocation();
+    }
+
+    @Benchmark
+    public String[] buildCliCommand() {
+        return sender.buildCliCommand(batch);
+    }
+
+    @Benchmark
+    public void serializeExtraHeartbeats(Blackhole bh) throws IOException {
+        out.reset();
+        HeartbeatJson.writeCli(out, batch, 1);
+        bh.consume(out.size());
+    }
+
+    @Benchmark
+    public void serializeApiHeartbeats(Blackhole bh) throws IOException {
+        out.reset();
+        HeartbeatJson.writeApi(out, batch);
+        bh.consume(out.size());
+    }
+}
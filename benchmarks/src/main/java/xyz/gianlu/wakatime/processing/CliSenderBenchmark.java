@@ -0,0 +1,37 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of sending a batch to the fake CLI, through the worker or by spawning a process every time.
+ * Needs python on the PATH.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CliSenderBenchmark {
+    @Param({"true", "false"})
+    public boolean worker;
+    @Param({"1", "100"})
+    public int size;
+    private CliSender sender;
+    private HeartbeatBatch batch;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkEnvironment.setup("cli_worker = " + worker);
+        sender = new CliSender(new Metrics(() -> 0));
+        batch = BenchmarkEnvironment.batch(size);
+        Dependencies.getPythonLocation();
+    }
+
+    @Benchmark
+    public SendResult send() {
+        return sender.send(batch).join();
+    }
+}
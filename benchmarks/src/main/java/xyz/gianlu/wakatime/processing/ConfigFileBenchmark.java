@@ -0,0 +1,56 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link ConfigFile#get} and {@link ConfigFile#set} on config files of increasing size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigFileBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int lines;
+    private int counter = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        File home = BenchmarkEnvironment.setup();
+
+        List<String> config = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            if (i % 100 == 0) config.add("[section" + (i / 100) + "]");
+            config.add("key" + i + " = value" + i);
+        }
+
+        config.add("[settings]");
+        config.add("api_key = " + BenchmarkEnvironment.API_KEY);
+        config.add("debug = false");
+        Files.write(new File(home, ".wakatime.cfg").toPath(), config, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String get() {
+        return ConfigFile.get("settings", "api_key");
+    }
+
+    @Benchmark
+    public String getMissing() {
+        return ConfigFile.get("settings", "missing");
+    }
+
+    @Benchmark
+    public void set() {
+        ConfigFile.set("settings", "counter", String.valueOf(counter++));
+    }
+}
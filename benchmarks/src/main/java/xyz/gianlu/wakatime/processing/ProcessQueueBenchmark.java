@@ -0,0 +1,40 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a flush that drains the queue into a batch, run on the scheduler like in the IDE, with a sender that does
+ * nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessQueueBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int queued;
+    private Wakatime wakatime;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkEnvironment.setup("flush_max_batch = 100000", "flush_max_age = 3600", "flush_write_delay = 3600");
+        wakatime = new Wakatime(new BenchmarkEnvironment.NoopSender());
+        timestamp = System.currentTimeMillis() / 1000;
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        for (int i = 0; i < queued; i++)
+            wakatime.appendHeartbeat("Sketch" + (i & 3), "/home/user/sketchbook/Sketch/Tab" + (i & 7) + ".pde", "Java", true, timestamp + i, -1, -1);
+    }
+
+    @Benchmark
+    public void drain() throws Exception {
+        wakatime.flush();
+    }
+}
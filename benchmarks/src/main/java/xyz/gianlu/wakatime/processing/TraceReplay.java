@@ -0,0 +1,306 @@
+package xyz.gianlu.wakatime.processing;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a trace of editor events through {@link Wakatime#appendHeartbeat} outside of the IDE and reports how
+ * the pipeline behaved.
+ * <p>
+ * The trace is a JSONL file, one event per line:
+ * {@code {"t": 1500, "project": "Sketch", "file": "/path/Sketch.pde", "write": false, "line": 12, "cursor": 340}},
+ * where {@code t} is in milliseconds from the start of the trace. Heartbeat timestamps follow the trace, so the
+ * throttle sees the recorded timing whatever the speed-up, while flushes happen in real time.
+ * <p>
+ * Usage: {@code TraceReplay (--trace <file> | --synthetic <events>) [--speedup <factor>, 0 for no pauses]
+ * [--sender cli|http] [--settings "key = value"]...}. The {@code cli} sender runs a stub wakatime-cli (needs
+ * Python), the {@code http} sender posts to a local fake API.
+ */
+public class TraceReplay {
+    private final List<Event> events;
+    private final double speedup;
+    private final Map<String, Long> enqueuedAt = new ConcurrentHashMap<>();
+    private final Histogram latencies = new Histogram();
+    private final AtomicLong sent = new AtomicLong(0);
+    private volatile long lastSentAt = 0;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private volatile boolean lastFailed = false; // Whether the last batch completed with RETRYABLE, FATAL or an exception
+
+    private TraceReplay(@NotNull List<Event> events, double speedup) {
+        this.events = events;
+        this.speedup = speedup;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Event> events = null;
+        double speedup = 1;
+        String senderType = "cli";
+        List<String> settings = new ArrayList<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (i == args.length - 1)
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+
+            switch (args[i]) {
+                case "--trace":
+                    events = readTrace(new File(args[i + 1]));
+                    break;
+                case "--synthetic":
+                    events = syntheticTrace(Integer.parseInt(args[i + 1]));
+                    break;
+                case "--speedup":
+                    speedup = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--sender":
+                    senderType = args[i + 1];
+                    break;
+                case "--settings":
+                    settings.add(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        if (events == null || events.isEmpty())
+            throw new IllegalArgumentException("Specify a trace with --trace <file> or --synthetic <events>");
+
+        BenchmarkEnvironment.setup(settings.toArray(new String[0]));
+
+        HttpServer server = null;
+        HeartbeatSender sender;
+        if (senderType.equals("http")) {
+            server = startFakeApi();
+            sender = new HttpSender("http://127.0.0.1:" + server.getAddress().getPort() + "/heartbeats.bulk", 30, null);
+        } else {
+            sender = new CliSender(new Metrics(() -> 0));
+        }
+
+        try {
+            new TraceReplay(events, speedup).run(sender);
+        } finally {
+            if (server != null) server.stop(0);
+        }
+
+        System.exit(0);
+    }
+
+    @NotNull
+    private static List<Event> readTrace(@NotNull File file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+
+                JsonObject obj = new JsonParser().parse(line).getAsJsonObject();
+                events.add(new Event(obj.get("t").getAsLong(), obj.get("project").getAsString(), obj.get("file").getAsString(),
+                        obj.has("write") && obj.get("write").getAsBoolean(),
+                        obj.has("line") ? obj.get("line").getAsInt() : -1,
+                        obj.has("cursor") ? obj.get("cursor").getAsInt() : -1));
+            }
+        }
+
+        events.sort(Comparator.comparingLong(e -> e.time));
+        return events;
+    }
+
+    /**
+     * Caret moves every few hundred milliseconds over a handful of sketches and tabs, with a save now and then.
+     */
+    @NotNull
+    private static List<Event> syntheticTrace(int count) {
+        Random random = new Random(42);
+        List<Event> events = new ArrayList<>(count);
+        long time = 0;
+        int sketch = 0, tab = 0;
+        for (int i = 0; i < count; i++) {
+            time += 50 + random.nextInt(500);
+            if (random.nextInt(200) == 0) sketch = random.nextInt(3);
+            if (random.nextInt(50) == 0) tab = random.nextInt(4);
+
+            String project = "Sketch" + sketch;
+            String file = "/home/user/sketchbook/" + project + "/Tab" + tab + ".pde";
+            events.add(new Event(time, project, file, random.nextInt(100) == 0, 1 + random.nextInt(300), random.nextInt(8000)));
+        }
+
+        return events;
+    }
+
+    @NotNull
+    private static HttpServer startFakeApi() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] buffer = new byte[8192];
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read(buffer) != -1) ;
+            }
+
+            byte[] response = "{\"responses\":[]}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(201, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    @NotNull
+    private static String key(@NotNull String entity, long timestamp) {
+        return entity + '@' + timestamp;
+    }
+
+    private void run(@NotNull HeartbeatSender delegate) throws InterruptedException {
+        HeartbeatSender sender = batch -> {
+            inFlight.incrementAndGet();
+            CompletableFuture<SendResult> result = delegate.send(batch);
+            result.whenComplete((r, ex) -> {
+                lastFailed = r == null || r == SendResult.RETRYABLE || r == SendResult.FATAL; // Batches that stay queued
+                inFlight.decrementAndGet();
+                if (r != SendResult.SUCCESS) return;
+
+                long now = System.nanoTime();
+                for (int i = 0; i < batch.size(); i++) {
+                    Long at = enqueuedAt.remove(key(batch.entity(i), batch.timestamp(i)));
+                    if (at != null) latencies.record(now - at);
+                }
+
+                sent.addAndGet(batch.size());
+                lastSentAt = now;
+            });
+
+            return result;
+        };
+
+        Wakatime wakatime = new Wakatime(sender);
+        Metrics metrics = wakatime.getMetrics();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AtomicLong peakHeap = new AtomicLong(0);
+        AtomicLong peakQueue = new AtomicLong(0);
+
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                peakQueue.accumulateAndGet(metrics.getQueueDepth(), Math::max);
+
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }, "trace-replay-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        long baseTimestamp = System.currentTimeMillis() / 1000;
+        long start = System.nanoTime();
+        for (Event event : events) {
+            if (speedup > 0) {
+                long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(event.time) / speedup);
+                long wait = due - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            }
+
+            long timestamp = baseTimestamp + event.time / 1000;
+            enqueuedAt.putIfAbsent(key(event.file, timestamp), System.nanoTime());
+            wakatime.appendHeartbeat(event.project, event.file, "Java", event.write, timestamp, event.line, event.cursor);
+            peakQueue.accumulateAndGet(metrics.getQueueDepth(), Math::max);
+        }
+
+        long replayed = System.nanoTime() - start;
+
+        // Wait for the last flush, which can be up to flush_max_age away. A failed batch blocks the queue until it
+        // is retried after a backoff, so the wait ends as soon as the last batch failed and its heartbeats count as unsent.
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+        boolean timedOut = false;
+        while (unsent(metrics) > 0) {
+            if (lastFailed && inFlight.get() == 0) break;
+
+            if (System.nanoTime() >= deadline) {
+                timedOut = true;
+                break;
+            }
+
+            Thread.sleep(50);
+        }
+
+        sampler.interrupt();
+        report(replayed, lastSentAt - start, metrics, peakQueue.get(), peakHeap.get());
+        if (timedOut) System.out.printf("TIMED OUT waiting for %d heartbeats, the numbers above are incomplete%n", unsent(metrics));
+    }
+
+    /**
+     * @return The heartbeats that were neither sent, compacted away nor rejected by the server
+     */
+    private static long unsent(@NotNull Metrics metrics) {
+        return metrics.getHeartbeatsEnqueued() - metrics.getHeartbeatsSent() - metrics.getHeartbeatsCompacted() - metrics.getHeartbeatsRejected();
+    }
+
+    private void report(long replayedNanos, long drainedNanos, @NotNull Metrics metrics, long peakQueue, long peakHeap) {
+        double replayedSeconds = replayedNanos / 1e9;
+        double drainedSeconds = Math.max(drainedNanos, 1) / 1e9;
+
+        System.out.printf("Events replayed:        %d in %.2fs (%.0f events/s)%n", events.size(), replayedSeconds, events.size() / replayedSeconds);
+        System.out.printf("Heartbeats enqueued:    %d (%d throttled)%n", metrics.getHeartbeatsEnqueued(), metrics.getHeartbeatsThrottled());
+        System.out.printf("Heartbeats sent:        %d (%d compacted) in %.2fs (%.0f heartbeats/s)%n", sent.get(), metrics.getHeartbeatsCompacted(), drainedSeconds, sent.get() / drainedSeconds);
+        System.out.printf("Heartbeats rejected:    %d%n", metrics.getHeartbeatsRejected());
+        System.out.printf("Failed batches:         %d (%d heartbeats unsent)%n", metrics.getBatchesFailed(), unsent(metrics));
+        System.out.printf("Event to send latency:  p50 %.1fms, p90 %.1fms, p99 %.1fms, max %.1fms%n",
+                latencies.percentile(0.5) / 1e6, latencies.percentile(0.9) / 1e6, latencies.percentile(0.99) / 1e6, latencies.percentile(1) / 1e6);
+        System.out.printf("Peak queue depth:       %d%n", peakQueue);
+        System.out.printf("Peak heap used:         %.1f MiB%n", peakHeap / (1024.0 * 1024.0));
+    }
+
+    private static final class Event {
+        final long time;
+        final String project;
+        final String file;
+        final boolean write;
+        final int line;
+        final int cursor;
+
+        Event(long time, @NotNull String project, @NotNull String file, boolean write, int line, int cursor) {
+            this.time = time;
+            this.project = project;
+            this.file = file;
+            this.write = write;
+            this.line = line;
+            this.cursor = cursor;
+        }
+    }
+
+    /**
+     * Exact percentiles, latencies are few enough to keep them all.
+     */
+    private static final class Histogram {
+        private final List<Long> values = new ArrayList<>();
+
+        synchronized void record(long value) {
+            values.add(value);
+        }
+
+        synchronized double percentile(double percentile) {
+            if (values.isEmpty()) return 0;
+
+            List<Long> sorted = new ArrayList<>(values);
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+            return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Cost of {@link Dependencies#unzip} on an archive shaped like the wakatime-cli one: a few hundred small files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnzipBenchmark {
+    private static final int FILES = 300;
+    private static final int FILE_SIZE = 16 * 1024;
+    private File zip;
+    private File output;
+
+    @Setup
+    public void setup() throws Exception {
+        File dir = Files.createTempDirectory("wakatime-bench-unzip").toFile();
+        zip = new File(dir, "wakatime-cli.zip");
+        output = new File(dir, "out");
+
+        Random random = new Random(42);
+        byte[] content = new byte[FILE_SIZE];
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+            zos.putNextEntry(new ZipEntry("wakatime-master/"));
+            zos.putNextEntry(new ZipEntry("wakatime-master/wakatime/"));
+            for (int i = 0; i < FILES; i++) {
+                // Half random, half repeated, so that it compresses like source code would
+                random.nextBytes(content);
+                for (int j = FILE_SIZE / 2; j < FILE_SIZE; j++) content[j] = (byte) ('a' + j % 26);
+
+                zos.putNextEntry(new ZipEntry("wakatime-master/wakatime/module" + i + ".py"));
+                zos.write(content);
+                zos.closeEntry();
+            }
+        }
+    }
+
+    @Benchmark
+    public void unzip() throws Exception {
+        Dependencies.unzip(zip.getAbsolutePath(), output);
+    }
+}
@@ -0,0 +1,105 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Spaces out retries of failed batches with exponential backoff and jitter, and stops sending altogether once
+ * the endpoint looks down. While open, the endpoint is probed with a plain TCP connection instead of spawning a
+ * sender. A successful probe lets a single batch through, which closes the breaker if it is delivered.
+ * <p>
+ * Only accessed from the scheduler thread.
+ */
+class CircuitBreaker {
+    private static final long INITIAL_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final int PROBE_TIMEOUT_MILLIS = 5000;
+    private final Random random = new Random();
+    private final String host;
+    private final int port;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long nextAttemptAt = System.nanoTime();
+
+    CircuitBreaker(@NotNull URL endpoint, @Nullable Proxy proxy) {
+        if (proxy != null && proxy.address() instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) proxy.address();
+            this.host = address.getHostString();
+            this.port = address.getPort();
+        } else {
+            this.host = endpoint.getHost();
+            this.port = endpoint.getPort() == -1 ? endpoint.getDefaultPort() : endpoint.getPort();
+        }
+    }
+
+    /**
+     * @return The milliseconds left before the next attempt is allowed, zero if it is allowed now
+     */
+    long remainingDelay() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(nextAttemptAt - System.nanoTime()));
+    }
+
+    boolean isOpen() {
+        return state == State.OPEN;
+    }
+
+    /**
+     * Checks whether the endpoint accepts connections, if so lets the next batch through.
+     */
+    boolean probe() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), PROBE_TIMEOUT_MILLIS);
+        } catch (IOException ex) {
+            LOG.config("Probe of " + host + ":" + port + " failed: " + ex);
+            return false;
+        }
+
+        LOG.config("Probe of " + host + ":" + port + " succeeded, trying a batch.");
+        state = State.HALF_OPEN;
+        return true;
+    }
+
+    void succeeded() {
+        if (state != State.CLOSED) LOG.info("Heartbeats endpoint is reachable again.");
+
+        state = State.CLOSED;
+        failures = 0;
+        nextAttemptAt = System.nanoTime();
+    }
+
+    /**
+     * Records a failed attempt or probe.
+     *
+     * @return The delay in milliseconds before the next attempt
+     */
+    long failed() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= FAILURE_THRESHOLD)) {
+            if (state == State.CLOSED) LOG.warning("Heartbeats endpoint looks down, pausing sends.");
+            state = State.OPEN;
+        }
+
+        // Equal jitter: at least half of the exponential delay, so that retries never bunch up at zero
+        long delay = INITIAL_DELAY_MILLIS << Math.min(failures - 1, 16);
+        delay = Math.min(delay, MAX_DELAY_MILLIS);
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+
+        nextAttemptAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        return delay;
+    }
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+}
@@ -0,0 +1,347 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Installs every version of wakatime-cli side by side in {@code cli/<id>} and switches between them by atomically
+ * replacing the {@code cli/current} pointer file, which names the current and the previous install.
+ * <p>
+ * A new version is downloaded, extracted, checked with {@code --version} and byte-compiled while the current one
+ * keeps serving, and only then becomes current. The previous install is kept for {@link #rollback()} and anything older is deleted.
+ * Installs and cleanups of several Processing instances are serialized by a lock on {@code cli/install.lock}.
+ * Before the first versioned install, the CLI is the one in {@code wakatime-master}, named {@code legacy} here.
+ */
+final class CliInstalls {
+    private static final String LEGACY = "legacy";
+    private static final String POINTER_FILE = "current";
+    private static final String DEFAULT_DOWNLOAD_URL = "https://codeload.github.com/wakatime/wakatime/zip/master";
+    private static final int STARTUP_SAMPLES = 3;
+    private static final String CHECK_CACHE_SCRIPT = String.join("\n",
+            "import os, sys",
+            "try:",
+            "    from importlib.util import cache_from_source",
+            "except ImportError:",
+            "    cache_from_source = lambda path: path + 'c'",
+            "d = sys.argv[1]",
+            "missing = [f for f in os.listdir(d) if f.endswith('.py') and not os.path.exists(cache_from_source(os.path.join(d, f)))]",
+            "sys.stdout.write(' '.join(missing))",
+            "sys.exit(1 if missing else 0)");
+    private static final Pattern VERSION_PATTERN = Pattern.compile("__version_info__ = \\('([0-9]+)', '([0-9]+)', '([0-9]+)'\\)");
+    private static Properties pointer = null;
+    private static long pointerModified = -1;
+
+    private CliInstalls() {
+    }
+
+    @NotNull
+    private static File getRoot() {
+        return new File(Dependencies.getResourcesLocation(), "cli");
+    }
+
+    @NotNull
+    private static String getDownloadUrl() {
+        String url = ConfigFile.get("settings", "cli_download_url");
+        return url == null || url.trim().isEmpty() ? DEFAULT_DOWNLOAD_URL : url.trim();
+    }
+
+    @NotNull
+    private static File cliOf(@NotNull String id) {
+        File dir = id.equals(LEGACY) ? new File(Dependencies.getResourcesLocation()) : new File(getRoot(), id);
+        return new File(Dependencies.combinePaths(dir.getAbsolutePath(), "wakatime-master", "wakatime", "cli.py"));
+    }
+
+    /**
+     * @return The pointer file, read again only if it changed since the last time
+     */
+    @NotNull
+    private static synchronized Properties readPointer() {
+        File file = new File(getRoot(), POINTER_FILE);
+        long modified = file.lastModified();
+        if (pointer != null && modified == pointerModified) return pointer;
+
+        Properties props = new Properties();
+        if (modified != 0) {
+            try (InputStream in = new FileInputStream(file)) {
+                props.load(in);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed reading wakatime-cli pointer file.", ex);
+            }
+        }
+
+        pointer = props;
+        pointerModified = modified;
+        return props;
+    }
+
+    private static synchronized void writePointer(@NotNull String current, @Nullable String previous) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("current", current);
+        if (previous != null) props.setProperty("previous", previous);
+
+        File file = new File(getRoot(), POINTER_FILE);
+        File tmp = new File(getRoot(), POINTER_FILE + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        pointer = props;
+        pointerModified = file.lastModified();
+    }
+
+    /**
+     * @return The location of {@code cli.py} of the current install
+     */
+    @NotNull
+    static String getCLILocation() {
+        return cliOf(readPointer().getProperty("current", LEGACY)).getAbsolutePath();
+    }
+
+    @Nullable
+    private static FileLock tryLock() {
+        File root = getRoot();
+        if (!root.exists() && !root.mkdirs()) {
+            LOG.warning("Cannot create wakatime-cli directory: " + root);
+            return null;
+        }
+
+        try {
+            @SuppressWarnings("resource")
+            FileChannel channel = new RandomAccessFile(new File(root, "install.lock"), "rw").getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock == null) channel.close();
+            return lock;
+        } catch (IOException ex) {
+            LOG.log(Level.CONFIG, "Failed acquiring the wakatime-cli install lock.", ex);
+            return null;
+        }
+    }
+
+    private static void release(@NotNull FileLock lock) {
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * Downloads the latest wakatime-cli into a new directory and makes it the current one if it works.
+     *
+     * @return Whether the new version is now the current one
+     */
+    static boolean install() {
+        FileLock lock = tryLock();
+        if (lock == null) {
+            LOG.info("wakatime-cli is being installed by another instance.");
+            return false;
+        }
+
+        try {
+            File root = getRoot();
+            File zip = new File(root, "wakatime-cli.zip");
+            if (!Dependencies.downloadFile(getDownloadUrl(), zip.getAbsolutePath()) || !Download.isValidZip(zip))
+                return false;
+
+            File tmp = new File(root, System.currentTimeMillis() + ".tmp");
+            try {
+                Dependencies.unzip(zip.getAbsolutePath(), tmp);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed extracting wakatime-cli.", ex);
+                Dependencies.deleteDirectory(tmp);
+                return false;
+            }
+
+            zip.delete();
+
+            String version = readVersion(tmp);
+            String id = tmp.getName().substring(0, tmp.getName().length() - 4) + (version == null ? "" : "-" + version);
+            File dir = new File(root, id);
+            if (!tmp.renameTo(dir)) {
+                LOG.warning("Cannot move wakatime-cli into " + dir);
+                Dependencies.deleteDirectory(tmp);
+                return false;
+            }
+
+            // Timed without writing bytecode, like a spawn that cannot write the cache
+            long uncached = timeStartup(cliOf(id), false);
+            if (uncached < 0) {
+                LOG.warning("wakatime-cli " + id + " doesn't work, keeping the current one.");
+                Dependencies.deleteDirectory(dir);
+                return false;
+            }
+
+            compile(id, uncached);
+
+            Properties current = readPointer();
+            String previous = current.getProperty("current", cliOf(LEGACY).exists() ? LEGACY : null);
+            writePointer(id, previous);
+            LOG.info("Switched to wakatime-cli " + id);
+
+            collectGarbage(id, previous);
+            return true;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed switching wakatime-cli version.", ex);
+            return false;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Makes the previous install the current one again.
+     *
+     * @return Whether there was a previous install to go back to
+     */
+    static boolean rollback() {
+        FileLock lock = tryLock();
+        if (lock == null) return false;
+
+        try {
+            Properties current = readPointer();
+            String previous = current.getProperty("previous");
+            if (previous == null || !cliOf(previous).exists()) return false;
+
+            writePointer(previous, current.getProperty("current", LEGACY));
+            LOG.info("Rolled back to wakatime-cli " + previous);
+            return true;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed rolling back wakatime-cli.", ex);
+            return false;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * @return Whether there is a previous install to roll back to
+     */
+    static boolean canRollback() {
+        String previous = readPointer().getProperty("previous");
+        return previous != null && cliOf(previous).exists();
+    }
+
+    /**
+     * Deletes every install other than the two given ones, and what interrupted installs left behind.
+     */
+    private static void collectGarbage(@NotNull String current, @Nullable String previous) {
+        File[] dirs = getRoot().listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.getName().equals(current) || dir.getName().equals(previous)) continue;
+
+                LOG.config("Deleting old wakatime-cli " + dir.getName());
+                Dependencies.deleteDirectory(dir);
+            }
+        }
+
+        if (!LEGACY.equals(current) && !LEGACY.equals(previous)) {
+            File legacy = cliOf(LEGACY).getParentFile().getParentFile();
+            if (legacy.exists()) {
+                LOG.config("Deleting old wakatime-cli " + legacy);
+                Dependencies.deleteDirectory(legacy);
+            }
+        }
+    }
+
+    @Nullable
+    private static String readVersion(@NotNull File dir) {
+        File about = new File(Dependencies.combinePaths(dir.getAbsolutePath(), "wakatime-master", "wakatime", "__about__.py"));
+        try {
+            Matcher m = VERSION_PATTERN.matcher(new String(Files.readAllBytes(about.toPath()), StandardCharsets.UTF_8));
+            return m.find() ? m.group(1) + "." + m.group(2) + "." + m.group(3) : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Byte-compiles the package of the install, so that spawning the CLI doesn't compile every module it imports
+     * again, as happens when Python cannot write its cache. The startup time with and without the cache is logged
+     * and kept in {@code install.properties} of the install.
+     */
+    private static void compile(@NotNull String id, long uncachedMillis) {
+        File cli = cliOf(id);
+        String pkg = cli.getParentFile().getAbsolutePath();
+
+        // Vendored packages for other Python versions don't compile, so only the exit code of the check matters
+        int code = run(Dependencies.getPythonLocation(), "-m", "compileall", "-q", pkg);
+        LOG.config("compileall exited with code " + code);
+        if (run(Dependencies.getPythonLocation(), "-c", CHECK_CACHE_SCRIPT, pkg) != 0) {
+            LOG.warning("wakatime-cli " + id + " couldn't be byte-compiled, it will be compiled at every run.");
+            return;
+        }
+
+        long cachedMillis = timeStartup(cli, true);
+        LOG.info("wakatime-cli " + id + " starts in " + cachedMillis + "ms, " + uncachedMillis + "ms without bytecode cache.");
+
+        Properties props = new Properties();
+        props.setProperty("startup.uncachedMillis", String.valueOf(uncachedMillis));
+        props.setProperty("startup.cachedMillis", String.valueOf(cachedMillis));
+        try (OutputStream out = new FileOutputStream(new File(getRoot(), id + File.separator + "install.properties"))) {
+            props.store(out, null);
+        } catch (IOException ex) {
+            LOG.log(Level.CONFIG, null, ex);
+        }
+    }
+
+    /**
+     * @param useCache Whether Python may use and write the bytecode cache
+     * @return The median time {@code cli.py --version} takes, or {@code -1} if it failed
+     */
+    private static long timeStartup(@NotNull File cli, boolean useCache) {
+        if (!cli.exists()) return -1;
+
+        long[] samples = new long[STARTUP_SAMPLES];
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            int code = useCache ? run(Dependencies.getPythonLocation(), cli.getAbsolutePath(), "--version")
+                    : run(Dependencies.getPythonLocation(), "-B", cli.getAbsolutePath(), "--version");
+            if (code != 0) return -1;
+
+            samples[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+
+        Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    /**
+     * @return The exit code of the command, or {@code -1} if it couldn't be run or was killed
+     */
+    private static int run(@NotNull String... cmd) {
+        try {
+            return ProcessSupervisor.shared().runWhenFree(cmd, null).get();
+        } catch (ExecutionException ex) {
+            LOG.log(Level.WARNING, "Failed running " + String.join(" ", cmd), ex.getCause());
+            return -1;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Sends heartbeats through wakatime-cli, either inside the long-lived {@link CliWorker} or by spawning the CLI
+ * under the {@link ProcessSupervisor}. The caller is never blocked while the CLI runs.
+ */
+class CliSender implements HeartbeatSender {
+    private static final int API_ERROR = 102;
+    private static final int CONFIG_FILE_PARSE_ERROR = 103;
+    private static final int AUTH_ERROR = 104;
+    private static final int MALFORMED_HEARTBEAT_ERROR = 106;
+    private final CliWorker worker = new CliWorker();
+    private final ExecutorService workerExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "wakatime-cli-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ProcessSupervisor supervisor;
+    private final Metrics metrics;
+
+    CliSender(@NotNull Metrics metrics) {
+        this.metrics = metrics;
+        this.supervisor = ProcessSupervisor.shared();
+    }
+
+    /**
+     * Maps the exit codes of wakatime-cli (see wakatime/constants.py) to what should happen to the batch.
+     */
+    @NotNull
+    static SendResult classify(int exitCode) {
+        switch (exitCode) {
+            case 0:
+                return SendResult.SUCCESS;
+            case API_ERROR: // wakatime-cli keeps the heartbeats in its offline queue and sends them itself later
+                return SendResult.HANDED_OFF;
+            case AUTH_ERROR:
+            case CONFIG_FILE_PARSE_ERROR:
+                return SendResult.FATAL;
+            case MALFORMED_HEARTBEAT_ERROR:
+                return SendResult.REJECTED;
+            default:
+                return SendResult.RETRYABLE;
+        }
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<SendResult> send(@NotNull HeartbeatBatch batch) {
+        String[] cmd = buildCliCommand(batch);
+
+        CliWorker.Input input = null;
+        if (batch.size() > 1) {
+            LOG.config("Sending " + (batch.size() - 1) + " extra heartbeats");
+            input = out -> HeartbeatJson.writeCli(out, batch, 1);
+        }
+
+        if (!worker.isAvailable())
+            return spawn(cmd, input);
+
+        CliWorker.Input workerInput = input;
+        return CompletableFuture.supplyAsync(() -> {
+            LOG.config("Sending to worker: " + Arrays.toString(Wakatime.obfuscateKey(cmd)));
+
+            long start = System.nanoTime();
+            Integer exitCode = worker.execute(Arrays.copyOfRange(cmd, 2, cmd.length), workerInput);
+            if (exitCode != null) {
+                metrics.cliFinished(System.nanoTime() - start, exitCode);
+                LOG.config("Worker finished with return value: " + exitCode);
+            }
+
+            return exitCode;
+        }, workerExecutor).thenCompose(exitCode -> exitCode != null ? CompletableFuture.completedFuture(classify(exitCode)) : spawn(cmd, workerInput));
+    }
+
+    @NotNull
+    private CompletableFuture<SendResult> spawn(@NotNull String[] cmd, @Nullable CliWorker.Input input) {
+        LOG.config("Executing CLI: " + Arrays.toString(Wakatime.obfuscateKey(cmd)));
+
+        long start = System.nanoTime();
+        return supervisor.run(cmd, input).handle((exitCode, ex) -> {
+            if (ex instanceof RejectedExecutionException) {
+                LOG.config("Not sending now: " + ex.getMessage());
+                return SendResult.BUSY;
+            } else if (ex != null) {
+                if (ex instanceof TimeoutException) metrics.cliTimedOut();
+                LOG.log(Level.WARNING, "Failed running wakatime-cli.", ex);
+                return SendResult.RETRYABLE;
+            }
+
+            metrics.cliFinished(System.nanoTime() - start, exitCode);
+            LOG.config("Command finished with return value: " + exitCode);
+            return classify(exitCode);
+        });
+    }
+
+    /**
+     * Builds the command for the first heartbeat of the batch, the others are sent as extra heartbeats.
+     */
+    @NotNull
+    String[] buildCliCommand(@NotNull HeartbeatBatch batch) {
+        ArrayList<String> cmd = new ArrayList<>();
+        cmd.add(Dependencies.getPythonLocation());
+        cmd.add(Dependencies.getCLILocation());
+        cmd.add("--entity");
+        cmd.add(batch.entity(0));
+        cmd.add("--time");
+        cmd.add(String.valueOf(batch.timestamp(0)));
+        cmd.add("--key");
+        cmd.add(Wakatime.getApiKey());
+
+        String project = batch.project(0);
+        if (project != null) {
+            cmd.add("--project");
+            cmd.add(project);
+        }
+
+        String language = batch.language(0);
+        if (language != null) {
+            cmd.add("--language");
+            cmd.add(language);
+        }
+
+        // Lines in the file and the branch are detected by the CLI itself
+        if (batch.lineno(0) != -1) {
+            cmd.add("--lineno");
+            cmd.add(String.valueOf(batch.lineno(0)));
+        }
+
+        if (batch.cursorpos(0) != -1) {
+            cmd.add("--cursorpos");
+            cmd.add(String.valueOf(batch.cursorpos(0)));
+        }
+
+        cmd.add("--plugin");
+        cmd.add(Wakatime.getPluginName());
+
+        if (batch.isWrite(0))
+            cmd.add("--write");
+
+        if (batch.size() > 1)
+            cmd.add("--extra-heartbeats");
+
+        return cmd.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,195 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the output of {@code cli.py --version} and the latest version published on GitHub.
+ * <p>
+ * The local output is reused as long as the CLI file doesn't change. The latest version is reused for
+ * {@code cli_version_ttl} seconds, after that the cached value is still used while it is refreshed in the
+ * background with a conditional request.
+ */
+class CliVersionCheck {
+    private static final String CACHE_FILE = "processing-wakatime-cli-version.properties";
+    private static final String DEFAULT_BASE_URL = "https://raw.githubusercontent.com/wakatime/wakatime/master";
+    private static final int DEFAULT_TTL_SECONDS = 24 * 60 * 60;
+    private static final int TIMEOUT_MILLIS = 10000;
+    private static final Pattern VERSION_PATTERN = Pattern.compile("__version_info__ = \\('([0-9]+)', '([0-9]+)', '([0-9]+)'\\)");
+    private static Thread refresher = null;
+
+    @NotNull
+    private static String getAboutUrl() {
+        String base = ConfigFile.get("settings", "cli_version_base_url");
+        if (base == null || base.trim().isEmpty()) base = DEFAULT_BASE_URL;
+        else base = base.trim();
+
+        if (base.endsWith("/")) base = base.substring(0, base.length() - 1);
+        return base + "/wakatime/__about__.py";
+    }
+
+    @NotNull
+    private static File getCacheFile() {
+        return new File(Dependencies.getResourcesLocation(), CACHE_FILE);
+    }
+
+    @NotNull
+    private static synchronized Properties load() {
+        Properties props = new Properties();
+        File file = getCacheFile();
+        if (!file.exists()) return props;
+
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException ex) {
+            Wakatime.LOG.log(Level.CONFIG, null, ex);
+        }
+
+        return props;
+    }
+
+    private static synchronized void update(@NotNull Properties changes) {
+        Properties props = load();
+        props.putAll(changes);
+
+        File file = getCacheFile();
+        if (!file.getParentFile().exists()) file.getParentFile().mkdirs();
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, null);
+        } catch (IOException ex) {
+            Wakatime.LOG.log(Level.CONFIG, null, ex);
+        }
+    }
+
+    /**
+     * @return The output of {@code cli.py --version} or {@code null} if it failed
+     */
+    @Nullable
+    static String getLocalVersion() {
+        File cli = new File(Dependencies.getCLILocation());
+        String key = Dependencies.getPythonLocation() + "|" + cli + "|" + cli.lastModified();
+
+        Properties props = load();
+        if (key.equals(props.getProperty("local.key"))) {
+            Wakatime.LOG.config("wakatime cli version check output (cached): \"" + props.getProperty("local.output") + "\"");
+            return props.getProperty("local.output");
+        }
+
+        ArrayList<String> cmds = new ArrayList<>();
+        cmds.add(Dependencies.getPythonLocation());
+        cmds.add(Dependencies.getCLILocation());
+        cmds.add("--version");
+
+        try {
+            StringBuilder output = new StringBuilder();
+            int exitCode = ProcessSupervisor.shared().runWhenFree(cmds.toArray(new String[0]), output::append).get();
+
+            Wakatime.LOG.config("wakatime cli version check output: \"" + output + "\"");
+            Wakatime.LOG.config("wakatime cli version check exit code: " + exitCode);
+
+            if (exitCode != 0)
+                return null;
+
+            Properties changes = new Properties();
+            changes.setProperty("local.key", key);
+            changes.setProperty("local.output", output.toString());
+            update(changes);
+            return output.toString();
+        } catch (Exception ex) {
+            Wakatime.LOG.log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return The latest version of the CLI or {@code "Unknown"} if it couldn't be determined
+     */
+    @NotNull
+    static String getLatestVersion() {
+        Properties props = load();
+        String cached = props.getProperty("latest.version");
+        if (cached == null || !getAboutUrl().equals(props.getProperty("latest.url"))) {
+            String version = refresh(null, null);
+            return version == null ? "Unknown" : version;
+        }
+
+        long fetchedAt = Long.parseLong(props.getProperty("latest.fetchedAt", "0"));
+        long ttl = TimeUnit.SECONDS.toMillis(ConfigFile.getInt("settings", "cli_version_ttl", DEFAULT_TTL_SECONDS));
+        if (System.currentTimeMillis() - fetchedAt > ttl)
+            refreshInBackground(props.getProperty("latest.etag"), props.getProperty("latest.lastModified"));
+
+        return cached;
+    }
+
+    private static synchronized void refreshInBackground(@Nullable String etag, @Nullable String lastModified) {
+        if (refresher != null && refresher.isAlive())
+            return;
+
+        refresher = new Thread(() -> refresh(etag, lastModified), "wakatime-cli-version-check");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Fetches the latest version and stores it in the cache.
+     *
+     * @return The latest version or {@code null} if the request failed
+     */
+    @Nullable
+    private static String refresh(@Nullable String etag, @Nullable String lastModified) {
+        String url = getAboutUrl();
+
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(TIMEOUT_MILLIS);
+            conn.setReadTimeout(TIMEOUT_MILLIS);
+            if (etag != null) conn.setRequestProperty("If-None-Match", etag);
+            if (lastModified != null) conn.setRequestProperty("If-Modified-Since", lastModified);
+
+            Properties changes = new Properties();
+            changes.setProperty("latest.fetchedAt", String.valueOf(System.currentTimeMillis()));
+
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                conn.getInputStream().close();
+                update(changes);
+                Wakatime.LOG.config("Current cli version from GitHub not modified");
+                return load().getProperty("latest.version");
+            } else if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected status code " + code + " for " + url);
+            }
+
+            String text;
+            try (InputStream in = conn.getInputStream()) {
+                text = Dependencies.readAsString(in);
+            }
+
+            Matcher m = VERSION_PATTERN.matcher(text);
+            if (!m.find()) return null;
+
+            String version = m.group(1) + "." + m.group(2) + "." + m.group(3);
+            Wakatime.LOG.config("Current cli version from GitHub: " + version);
+
+            changes.setProperty("latest.url", url);
+            changes.setProperty("latest.version", version);
+            if (conn.getHeaderField("ETag") != null) changes.setProperty("latest.etag", conn.getHeaderField("ETag"));
+            if (conn.getHeaderField("Last-Modified") != null) changes.setProperty("latest.lastModified", conn.getHeaderField("Last-Modified"));
+            update(changes);
+            return version;
+        } catch (IOException ex) {
+            Wakatime.LOG.log(Level.WARNING, "Failed checking latest cli version.", ex);
+            return null;
+        }
+    }
+}
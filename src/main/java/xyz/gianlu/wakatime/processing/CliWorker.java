@@ -0,0 +1,202 @@
+package xyz.gianlu.wakatime.processing;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Keeps a single wakatime-cli interpreter alive and feeds it successive batches over its stdin, so that
+ * Python doesn't have to start up again for every flush. The worker is restarted when it dies, but if it keeps
+ * crashing it is disabled and callers are expected to fall back to spawning the CLI for every batch.
+ */
+class CliWorker {
+    private static final String MARKER = "__wakatime_worker_exit__";
+    private static final String READY = "ready";
+    private static final String SCRIPT_NAME = "processing-wakatime-worker.py";
+    private static final int MAX_RESTARTS = 3;
+    private static final long RESTART_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long STARTUP_TIMEOUT_SECONDS = 30;
+    private static final long RESPONSE_TIMEOUT_SECONDS = 60;
+    private final Deque<Long> starts = new ArrayDeque<>();
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+    private Process process = null;
+    private String cliLocation = null; // The CLI the process is running
+    private Writer stdin = null;
+    private volatile boolean disabled;
+
+    CliWorker() {
+        String enabled = ConfigFile.get("settings", "cli_worker");
+        disabled = enabled != null && enabled.trim().equals("false");
+        if (disabled) LOG.config("wakatime-cli worker disabled by config");
+    }
+
+    @NotNull
+    private static File extractScript() throws IOException {
+        File script = new File(Dependencies.getResourcesLocation(), SCRIPT_NAME);
+        try (InputStream in = CliWorker.class.getResourceAsStream("worker.py")) {
+            if (in == null) throw new FileNotFoundException("worker.py");
+            Files.copy(in, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        return script;
+    }
+
+    boolean isAvailable() {
+        return !disabled;
+    }
+
+    /**
+     * Runs the CLI inside the worker.
+     *
+     * @param args  The CLI arguments, without the interpreter and the script location
+     * @param input Writes what the CLI should read from its standard input as a single line, may be {@code null}
+     * @return The CLI exit code or {@code null} if the worker couldn't process the batch
+     */
+    @Nullable
+    synchronized Integer execute(@NotNull String[] args, @Nullable Input input) {
+        if (disabled || !ensureRunning())
+            return null;
+
+        JsonArray array = new JsonArray(args.length);
+        for (String arg : args) array.add(arg);
+
+        JsonObject request = new JsonObject();
+        request.add("args", array);
+        request.addProperty("stdin", input != null);
+
+        try {
+            stdin.write(request.toString());
+            stdin.write('\n');
+            if (input != null) {
+                input.writeTo(stdin);
+                stdin.write('\n');
+            }
+
+            stdin.flush();
+
+            String response = responses.poll(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (response == null) {
+                LOG.warning("wakatime-cli worker did not answer in time, killing it.");
+                destroy();
+                return null;
+            }
+
+            return Integer.parseInt(response);
+        } catch (IOException | NumberFormatException ex) {
+            LOG.log(Level.WARNING, "wakatime-cli worker failed.", ex);
+            destroy();
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            destroy();
+            return null;
+        }
+    }
+
+    private boolean ensureRunning() {
+        if (process != null && process.isAlive()) {
+            if (Dependencies.getCLILocation().equals(cliLocation))
+                return true;
+
+            // Switched to another wakatime-cli version, that isn't a crash
+            LOG.config("wakatime-cli changed, restarting worker.");
+            destroy();
+            starts.pollLast();
+        }
+
+        if (process != null) {
+            LOG.warning("wakatime-cli worker exited with code " + process.exitValue());
+            destroy();
+        }
+
+        long now = System.currentTimeMillis();
+        while (!starts.isEmpty() && starts.peekFirst() < now - RESTART_WINDOW_MILLIS)
+            starts.pollFirst();
+
+        if (starts.size() >= MAX_RESTARTS) {
+            LOG.warning("wakatime-cli worker keeps crashing, falling back to one process per batch.");
+            disabled = true;
+            return false;
+        }
+
+        starts.addLast(now);
+
+        try {
+            cliLocation = Dependencies.getCLILocation();
+            String[] cmd = {Dependencies.getPythonLocation(), extractScript().getAbsolutePath(), cliLocation};
+            LOG.config("Starting wakatime-cli worker: " + String.join(" ", cmd));
+
+            responses.clear();
+            process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+
+            Thread reader = new Thread(new OutputReader(process.getInputStream()), "wakatime-cli-worker");
+            reader.setDaemon(true);
+            reader.start();
+
+            String ready = responses.poll(STARTUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!READY.equals(ready)) {
+                LOG.warning("wakatime-cli worker failed to start.");
+                destroy();
+                return false;
+            }
+
+            return true;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed starting wakatime-cli worker.", ex);
+            destroy();
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            destroy();
+            return false;
+        }
+    }
+
+    synchronized void destroy() {
+        if (process != null) {
+            process.destroy();
+            process = null;
+        }
+
+        stdin = null;
+    }
+
+    private class OutputReader implements Runnable {
+        private final InputStream in;
+
+        OutputReader(@NotNull InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(MARKER + " ")) responses.add(line.substring(MARKER.length() + 1).trim());
+                    else LOG.config(line);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    interface Input {
+        void writeTo(@NotNull Writer out) throws IOException;
+    }
+}
@@ -0,0 +1,346 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.logging.Level;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Keeps the coding time per day, broken down by project, file and language, so that it can be shown without asking
+ * the server. Heartbeats are added as they are drained from the queue and the time between two consecutive
+ * heartbeats of the same source is counted for the first one if it is shorter than the timeout, like the dashboard
+ * does. A source is the spool of a Processing instance, since the leader sends the heartbeats of every instance.
+ * <p>
+ * Each day is a small file with its totals, the newest one also holds the last heartbeat of every source so that
+ * counting carries on after a restart or when another instance becomes the leader. Heartbeats older than the last
+ * one of their source are ignored, which also skips those that are replayed more than once. Sources are forgotten
+ * once they have been quiet since before the previous day.
+ */
+class CodingTimeStore {
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".stats";
+    private static final String UNKNOWN = "Unknown";
+    private final File dir;
+    private final long timeout;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Map<LocalDate, Day> days = new HashMap<>(); // Days read from disk, with the newest one
+    private Day newest = null;
+
+    /**
+     * @param timeout The longest gap between heartbeats, in seconds, that still counts as coding time
+     */
+    CodingTimeStore(@NotNull File dir, long timeout) {
+        this.dir = dir;
+        this.timeout = timeout;
+    }
+
+    @NotNull
+    static String formatDuration(long seconds) {
+        long minutes = seconds / 60;
+        if (minutes < 60) return minutes + "m";
+        else return (minutes / 60) + "h " + (minutes % 60) + "m";
+    }
+
+    private static void writeString(@NotNull DataOutputStream out, @Nullable String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) out.writeUTF(str);
+    }
+
+    @Nullable
+    private static String readString(@NotNull DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    @NotNull
+    private static Map<String, Long> readCounts(@NotNull DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Long> counts = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) counts.put(in.readUTF(), in.readLong());
+        return counts;
+    }
+
+    private static void writeCounts(@NotNull DataOutputStream out, @NotNull Map<String, Long> counts) throws IOException {
+        out.writeInt(counts.size());
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    @NotNull
+    private static Map<String, Long> sorted(@NotNull Map<String, Long> counts) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        Map<String, Long> sorted = new LinkedHashMap<>(counts.size() * 2);
+        for (Map.Entry<String, Long> entry : entries) sorted.put(entry.getKey(), entry.getValue());
+        return sorted;
+    }
+
+    @NotNull
+    private LocalDate dateOf(long timestamp) {
+        return Instant.ofEpochSecond(timestamp).atZone(zone).toLocalDate();
+    }
+
+    @NotNull
+    private File fileOf(@NotNull LocalDate date) {
+        return new File(dir, date + SUFFIX);
+    }
+
+    /**
+     * Counts the heartbeats of {@code batch} starting at {@code from} and saves the days that changed.
+     *
+     * @param source The spool the heartbeats come from
+     */
+    synchronized void add(@NotNull String source, @NotNull HeartbeatBatch batch, int from) {
+        if (from >= batch.size()) return;
+
+        Day current = newestDay();
+        Set<Day> changed = new HashSet<>();
+        for (int i = from; i < batch.size(); i++) {
+            long timestamp = batch.timestamp(i);
+            LocalDate date = dateOf(timestamp);
+            if (date.isAfter(current.date)) {
+                Day next = day(date);
+                LocalDate forgetBefore = date.minusDays(1);
+                current.sources.forEach((key, value) -> {
+                    if (!dateOf(value.timestamp).isBefore(forgetBefore)) next.sources.putIfAbsent(key, value);
+                });
+
+                current.sources.clear();
+                changed.add(current);
+                current = next;
+            }
+
+            Last last = current.sources.get(source);
+            if (last == null) {
+                last = new Last();
+                current.sources.put(source, last);
+            } else if (timestamp < last.timestamp) {
+                continue;
+            } else if (timestamp - last.timestamp <= timeout) {
+                // A gap across midnight counts for the day it started
+                Day day = day(dateOf(last.timestamp));
+                day.add(last.project, last.entity, last.language, timestamp - last.timestamp);
+                changed.add(day);
+            }
+
+            last.timestamp = timestamp;
+            last.entity = batch.entity(i);
+            last.project = batch.project(i);
+            last.language = batch.language(i);
+            changed.add(current);
+        }
+
+        newest = current;
+        for (Day day : changed) save(day);
+    }
+
+    /**
+     * @return The coding time between the two dates, both included
+     */
+    @NotNull
+    synchronized Summary summary(@NotNull LocalDate from, @NotNull LocalDate to) {
+        Summary summary = new Summary();
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+            Day day = day(date);
+            summary.total += day.total;
+            day.projects.forEach((key, value) -> summary.projects.merge(key, value, Long::sum));
+            day.files.forEach((key, value) -> summary.files.merge(key, value, Long::sum));
+            day.languages.forEach((key, value) -> summary.languages.merge(key, value, Long::sum));
+        }
+
+        return summary;
+    }
+
+    @NotNull
+    private Day newestDay() {
+        if (newest != null && !newest.isStale()) return newest;
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        LocalDate date = null;
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    LocalDate fileDate = LocalDate.parse(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                    if (date == null || fileDate.isAfter(date)) date = fileDate;
+                } catch (RuntimeException ignored) {
+                }
+            }
+        }
+
+        newest = day(date == null ? LocalDate.now(zone) : date);
+        return newest;
+    }
+
+    /**
+     * @return The day, read again if another instance has saved it since
+     */
+    @NotNull
+    private Day day(@NotNull LocalDate date) {
+        Day day = days.get(date);
+        if (day == null || day.isStale()) {
+            day = load(date);
+            days.put(date, day);
+        }
+
+        return day;
+    }
+
+    @NotNull
+    private Day load(@NotNull LocalDate date) {
+        File file = fileOf(date);
+        Day day = new Day(date, file.lastModified());
+        if (!file.exists()) return day;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) throw new IOException("Unknown format");
+
+            int sources = in.readInt();
+            for (int i = 0; i < sources; i++) {
+                String source = in.readUTF();
+                Last last = new Last();
+                last.timestamp = in.readLong();
+                last.entity = in.readUTF();
+                last.project = readString(in);
+                last.language = readString(in);
+                day.sources.put(source, last);
+            }
+
+            day.total = in.readLong();
+            day.projects.putAll(readCounts(in));
+            day.files.putAll(readCounts(in));
+            day.languages.putAll(readCounts(in));
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed reading coding time of " + date, ex);
+            return new Day(date, file.lastModified());
+        }
+
+        return day;
+    }
+
+    private void save(@NotNull Day day) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOG.warning("Cannot create coding time directory: " + dir);
+            return;
+        }
+
+        File file = fileOf(day.date);
+        File tmp = new File(dir, day.date + SUFFIX + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(day.sources.size());
+                for (Map.Entry<String, Last> entry : day.sources.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().timestamp);
+                    out.writeUTF(entry.getValue().entity);
+                    writeString(out, entry.getValue().project);
+                    writeString(out, entry.getValue().language);
+                }
+
+                out.writeLong(day.total);
+                writeCounts(out, day.projects);
+                writeCounts(out, day.files);
+                writeCounts(out, day.languages);
+            }
+
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            day.lastModified = file.lastModified();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed saving coding time of " + day.date, ex);
+        }
+    }
+
+    /**
+     * Totals of a day, with the last heartbeat of every source if it is the newest day.
+     */
+    private final class Day {
+        final LocalDate date;
+        final Map<String, Long> projects = new HashMap<>();
+        final Map<String, Long> files = new HashMap<>();
+        final Map<String, Long> languages = new HashMap<>();
+        final Map<String, Last> sources = new HashMap<>();
+        long total = 0;
+        long lastModified;
+
+        Day(@NotNull LocalDate date, long lastModified) {
+            this.date = date;
+            this.lastModified = lastModified;
+        }
+
+        boolean isStale() {
+            return fileOf(date).lastModified() != lastModified;
+        }
+
+        void add(@Nullable String project, @NotNull String entity, @Nullable String language, long duration) {
+            total += duration;
+            projects.merge(project == null ? UNKNOWN : project, duration, Long::sum);
+            files.merge(entity, duration, Long::sum);
+            languages.merge(language == null ? UNKNOWN : language, duration, Long::sum);
+        }
+    }
+
+    /**
+     * The last heartbeat counted from a source.
+     */
+    private static final class Last {
+        long timestamp;
+        String entity;
+        String project;
+        String language;
+    }
+
+    /**
+     * Coding time over some days, in seconds.
+     */
+    static final class Summary {
+        private final Map<String, Long> projects = new HashMap<>();
+        private final Map<String, Long> files = new HashMap<>();
+        private final Map<String, Long> languages = new HashMap<>();
+        private long total = 0;
+
+        long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return The time per project, longest first
+         */
+        @NotNull
+        Map<String, Long> getProjects() {
+            return sorted(projects);
+        }
+
+        /**
+         * @return The time per file, longest first
+         */
+        @NotNull
+        Map<String, Long> getFiles() {
+            return sorted(files);
+        }
+
+        /**
+         * @return The time per language, longest first
+         */
+        @NotNull
+        Map<String, Long> getLanguages() {
+            return sorted(languages);
+        }
+    }
+}
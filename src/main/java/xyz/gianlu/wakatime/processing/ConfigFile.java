@@ -1,10 +1,25 @@
 package xyz.gianlu.wakatime.processing;
 
-import java.io.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
 
 class ConfigFile {
     private static final String fileName = ".wakatime.cfg";
+    private static final List<Runnable> listeners = new CopyOnWriteArrayList<>();
     private static String cachedConfigFile = null;
+    private static volatile Model model = null;
+    private static volatile boolean watching = false;
+    private static long loadedModified = -1;
+    private static long loadedSize = -1;
 
     private static String getConfigFilePath() {
         if (ConfigFile.cachedConfigFile == null) {
@@ -24,86 +39,221 @@ class ConfigFile {
         return ConfigFile.cachedConfigFile;
     }
 
-    static String get(String section, String key) {
-        String file = ConfigFile.getConfigFilePath();
-        String val = null;
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String currentSection = "";
-            String line = br.readLine();
-            while (line != null) {
-                if (line.trim().startsWith("[") && line.trim().endsWith("]")) {
-                    currentSection = line.trim().substring(1, line.trim().length() - 1).toLowerCase();
-                } else {
-                    if (section.toLowerCase().equals(currentSection)) {
-                        String[] parts = line.split("=");
-                        if (parts.length == 2 && parts[0].trim().equals(key)) {
-                            val = parts[1].trim();
-                            br.close();
-                            return val;
-                        }
-                    }
+    /**
+     * Registers a listener that is called every time the config file changes on disk.
+     */
+    static void addListener(@NotNull Runnable listener) {
+        listeners.add(listener);
+        startWatching();
+    }
+
+    private static synchronized void startWatching() {
+        if (watching) return;
+
+        try {
+            // A symlinked file changes where it really is
+            Path file = realPath();
+            WatchService watcher = file.getFileSystem().newWatchService();
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+            Thread thread = new Thread(() -> watch(watcher, file.getFileName()), "wakatime-config-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            watching = true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            // Changes will still be picked up by the modification time check
+            Wakatime.LOG.log(Level.CONFIG, "Cannot watch config file.", ex);
+        }
+    }
+
+    private static void watch(@NotNull WatchService watcher, @NotNull Path fileName) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context()))
+                        changed = true;
                 }
 
-                line = br.readLine();
+                if (changed) {
+                    ConfigFile.model = null;
+                    for (Runnable listener : listeners) listener.run();
+                }
+
+                if (!key.reset()) break;
             }
-        } catch (IOException ex) { /* ignored */ }
+        } catch (InterruptedException ignored) {
+        } finally {
+            watching = false;
+        }
+    }
+
+    @NotNull
+    private static synchronized Model model() {
+        File file = new File(ConfigFile.getConfigFilePath());
+        Model current = ConfigFile.model;
+        if (current != null && (watching || (file.lastModified() == loadedModified && file.length() == loadedSize)))
+            return current;
+
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            lines = Collections.emptyList();
+        }
 
-        return val;
+        loadedModified = file.lastModified();
+        loadedSize = file.length();
+        return ConfigFile.model = new Model(lines);
+    }
+
+    static String get(String section, String key) {
+        Map<String, String> values = model().sections.get(section.toLowerCase());
+        return values == null ? null : values.get(key);
+    }
+
+    /**
+     * @return The value as a positive integer or {@code def} if it is missing or invalid.
+     */
+    static int getInt(String section, String key, int def) {
+        String val = get(section, key);
+        if (val == null) return def;
+
+        try {
+            int i = Integer.parseInt(val);
+            return i > 0 ? i : def;
+        } catch (NumberFormatException ex) {
+            return def;
+        }
     }
 
     static void set(String section, String key, String val) {
-        String file = ConfigFile.getConfigFilePath();
-        StringBuilder contents = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String currentSection = "";
-            String line = br.readLine();
-            Boolean found = false;
-            while (line != null) {
-                if (line.trim().startsWith("[") && line.trim().endsWith("]")) {
-                    if (section.toLowerCase().equals(currentSection) && !found) {
-                        contents.append(key).append(" = ").append(val).append("\n");
-                        found = true;
-                    }
-
-                    currentSection = line.trim().substring(1, line.trim().length() - 1).toLowerCase();
-                    contents.append(line).append("\n");
+        set(section, Collections.singletonMap(key, val));
+    }
+
+    /**
+     * Sets several keys of the same section with a single write.
+     */
+    static synchronized void set(String section, Map<String, String> values) {
+        section = section.toLowerCase();
+
+        List<String> contents = new ArrayList<>();
+        Set<String> written = new HashSet<>();
+        String currentSection = "";
+        for (String line : model().lines) {
+            if (Model.isSection(line)) {
+                if (section.equals(currentSection))
+                    appendMissing(contents, values, written);
+
+                currentSection = Model.sectionName(line);
+                contents.add(line);
+            } else if (section.equals(currentSection)) {
+                String currentKey = line.split("=", 2)[0].trim();
+                if (values.containsKey(currentKey)) {
+                    if (written.add(currentKey))
+                        contents.add(currentKey + " = " + values.get(currentKey));
                 } else {
-                    if (section.toLowerCase().equals(currentSection)) {
-                        String[] parts = line.split("=");
-                        String currentKey = parts[0].trim();
-                        if (currentKey.equals(key)) {
-                            if (!found) {
-                                contents.append(key).append(" = ").append(val).append("\n");
-                                found = true;
-                            }
-                        } else {
-                            contents.append(line).append("\n");
-                        }
-                    } else {
-                        contents.append(line).append("\n");
-                    }
+                    contents.add(line);
                 }
+            } else {
+                contents.add(line);
+            }
+        }
+
+        if (written.size() < values.size()) {
+            if (!section.equals(currentSection))
+                contents.add("[" + section + "]");
+
+            appendMissing(contents, values, written);
+        }
 
-                line = br.readLine();
+        try {
+            // Replace the file a symlink points to, not the symlink
+            Path file = realPath();
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+            // The file holds the API key, the copy gets its permissions before anything is written to it
+            Files.deleteIfExists(tmp);
+            Files.createFile(tmp);
+            copyPermissions(file, tmp);
+            Files.write(tmp, contents, StandardCharsets.UTF_8);
+
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
             }
 
-            if (!found) {
-                if (!section.toLowerCase().equals(currentSection))
-                    contents.append("[").append(section.toLowerCase()).append("]\n");
+            loadedModified = file.toFile().lastModified();
+            loadedSize = file.toFile().length();
+            ConfigFile.model = new Model(contents);
+        } catch (IOException ex) {
+            Wakatime.LOG.log(Level.WARNING, "Failed writing config file.", ex);
+        }
+    }
+
+    /**
+     * @return The config file with symlinks resolved, if it exists
+     */
+    @NotNull
+    private static Path realPath() throws IOException {
+        Path file = Paths.get(ConfigFile.getConfigFilePath());
+        return Files.exists(file) ? file.toRealPath() : file;
+    }
+
+    /**
+     * Gives {@code target} the POSIX permissions of {@code source}, or owner read and write only if there is no
+     * {@code source} yet. Does nothing on file systems without POSIX permissions.
+     */
+    private static void copyPermissions(@NotNull Path source, @NotNull Path target) throws IOException {
+        if (!Files.getFileStore(target).supportsFileAttributeView(PosixFileAttributeView.class))
+            return;
+
+        Set<PosixFilePermission> permissions;
+        if (Files.exists(source)) permissions = Files.getPosixFilePermissions(source);
+        else permissions = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+
+        Files.setPosixFilePermissions(target, permissions);
+    }
+
+    private static void appendMissing(@NotNull List<String> contents, @NotNull Map<String, String> values, @NotNull Set<String> written) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (written.add(entry.getKey()))
+                contents.add(entry.getKey() + " = " + entry.getValue());
+        }
+    }
 
-                contents.append(key).append(" = ").append(val).append("\n");
+    /**
+     * The parsed config file, the original lines are kept so that writing preserves comments and formatting.
+     */
+    private static final class Model {
+        private final List<String> lines;
+        private final Map<String, Map<String, String>> sections = new HashMap<>();
+
+        Model(@NotNull List<String> lines) {
+            this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+
+            Map<String, String> current = sections.computeIfAbsent("", k -> new HashMap<>());
+            for (String line : lines) {
+                if (isSection(line)) {
+                    current = sections.computeIfAbsent(sectionName(line), k -> new HashMap<>());
+                } else {
+                    String[] parts = line.split("=", 2);
+                    if (parts.length == 2) current.putIfAbsent(parts[0].trim(), parts[1].trim());
+                }
             }
-        } catch (IOException e) {
-            // cannot read config file, so create it
-            contents = new StringBuilder();
-            contents.append("[").append(section.toLowerCase()).append("]\n");
-            contents.append(key).append(" = ").append(val).append("\n");
         }
 
-        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
-            writer.print(contents.toString());
-        } catch (FileNotFoundException | UnsupportedEncodingException e) {
-            e.printStackTrace();
+        static boolean isSection(@NotNull String line) {
+            String trimmed = line.trim();
+            return trimmed.startsWith("[") && trimmed.endsWith("]");
+        }
+
+        @NotNull
+        static String sectionName(@NotNull String line) {
+            String trimmed = line.trim();
+            return trimmed.substring(1, trimmed.length() - 1).toLowerCase();
         }
     }
 }
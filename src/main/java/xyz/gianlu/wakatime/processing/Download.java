@@ -0,0 +1,207 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.logging.Level;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Downloads a file into {@code <target>.part} and only moves it to the target once it is complete.
+ * <p>
+ * If the partial file is there from an earlier attempt, or an earlier launch, the download resumes from where it
+ * stopped with a {@code Range} request. The validator of the response is kept next to the partial file and sent
+ * as {@code If-Range}, so that a resource that changed in the meantime is downloaded from scratch.
+ */
+final class Download {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int TIMEOUT_MILLIS = 30000;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private Download() {
+    }
+
+    /**
+     * @param listener Receives the progress, may be {@code null}
+     * @return Whether the file has been downloaded entirely
+     */
+    static boolean download(@NotNull String url, @NotNull File target, @Nullable Listener listener) {
+        File dir = target.getAbsoluteFile().getParentFile();
+        if (!dir.exists()) dir.mkdirs();
+
+        File part = new File(target.getPath() + ".part");
+        File validator = new File(target.getPath() + ".part.validator");
+
+        boolean insecure = false;
+        boolean done = false;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS && !done; attempt++) {
+            try {
+                done = fetch(new URL(url), part, validator, insecure, listener);
+            } catch (SSLException ex) {
+                // try downloading without verifying SSL cert (https://github.com/wakatime/jetbrains-wakatime/issues/46)
+                LOG.log(Level.WARNING, "SSL error downloading " + url + ", retrying without verifying the certificate.", ex);
+                insecure = true;
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed downloading " + url + " (attempt " + (attempt + 1) + ")", ex);
+            }
+        }
+
+        if (!done)
+            return false;
+
+        try {
+            Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            validator.delete();
+            return true;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, null, ex);
+            return false;
+        }
+    }
+
+    private static boolean fetch(@NotNull URL url, @NotNull File part, @NotNull File validator, boolean insecure, @Nullable Listener listener) throws IOException {
+        long existing = part.exists() ? part.length() : 0;
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(TIMEOUT_MILLIS);
+        conn.setReadTimeout(TIMEOUT_MILLIS);
+        if (insecure && conn instanceof HttpsURLConnection) {
+            try {
+                SSLContext context = SSLContext.getInstance("SSL");
+                context.init(null, new TrustManager[]{new LocalSSLTrustManager()}, null);
+                ((HttpsURLConnection) conn).setSSLSocketFactory(context.getSocketFactory());
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        if (existing > 0) {
+            conn.setRequestProperty("Range", "bytes=" + existing + "-");
+            if (validator.exists())
+                conn.setRequestProperty("If-Range", new String(Files.readAllBytes(validator.toPath()), StandardCharsets.UTF_8));
+        }
+
+        boolean append;
+        int code = conn.getResponseCode();
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            append = true;
+            LOG.config("Resuming download of " + url + " from " + existing + " bytes");
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            append = false;
+            existing = 0;
+        } else if (code == 416 && existing > 0) {
+            // The partial file is already complete
+            conn.disconnect();
+            return true;
+        } else {
+            conn.disconnect();
+            throw new IOException("Unexpected status code " + code + " for " + url);
+        }
+
+        String etag = conn.getHeaderField("ETag");
+        String lastModified = conn.getHeaderField("Last-Modified");
+        if (!append) {
+            if (etag != null && !etag.startsWith("W/")) Files.write(validator.toPath(), etag.getBytes(StandardCharsets.UTF_8));
+            else if (lastModified != null) Files.write(validator.toPath(), lastModified.getBytes(StandardCharsets.UTF_8));
+            else validator.delete();
+        }
+
+        long length = conn.getContentLengthLong();
+        long total = length < 0 ? -1 : existing + length;
+        long downloaded = existing;
+
+        StandardOpenOption mode = append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        try (ReadableByteChannel in = Channels.newChannel(conn.getInputStream());
+             FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    downloaded += out.write(buffer);
+
+                buffer.clear();
+                if (listener != null) listener.progress(downloaded, total);
+            }
+        }
+
+        if (total >= 0 && downloaded != total)
+            throw new IOException("Download of " + url + " ended after " + downloaded + " of " + total + " bytes");
+
+        return true;
+    }
+
+    /**
+     * Reads every entry of the archive, so that a truncated or corrupted file fails its CRC check here.
+     */
+    static boolean isValidZip(@NotNull File file) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(file.toPath()))) {
+            int entries = 0;
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                if (!ze.isDirectory()) {
+                    InputStream in = zis;
+                    while (in.read(buffer) != -1) ;
+                }
+
+                entries++;
+            }
+
+            return entries > 0;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Invalid zip file " + file, ex);
+            return false;
+        }
+    }
+
+    interface Listener {
+        /**
+         * @param total The total size in bytes or {@code -1} if unknown
+         */
+        void progress(long downloaded, long total);
+    }
+
+    /**
+     * Logs the progress every 10%.
+     */
+    static final class LoggingListener implements Listener {
+        private final String name;
+        private long lastStep = -1;
+
+        LoggingListener(@NotNull String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void progress(long downloaded, long total) {
+            if (total <= 0) return;
+
+            long step = downloaded * 10 / total;
+            if (step != lastStep) {
+                lastStep = step;
+                LOG.info("Downloading " + name + ": " + (step * 10) + "%");
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import processing.app.Sketch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Preallocated ring buffer that carries editor events from the EDT to a background consumer.
+ * <p>
+ * Publishing an event only claims a slot and stores the sketch reference, the time, the write flag and the caret into it,
+ * nothing is allocated and no lock is taken. Resolving the file, throttling and building the heartbeat all
+ * happen on the consumer thread. A caret event for the same sketch as an earlier caret event that is still
+ * waiting to be consumed updates that event with its time and caret instead of taking a new slot.
+ */
+class EditorEventRing {
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    private final Sketch[] sketches = new Sketch[CAPACITY];
+    private final AtomicLongArray timestamps = new AtomicLongArray(CAPACITY);
+    private final boolean[] writes = new boolean[CAPACITY];
+    private final AtomicLongArray carets = new AtomicLongArray(CAPACITY); // Line in the high half, offset in the low one
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY); // seq + 1 while waiting, 0 once taken
+    private final AtomicLong head = new AtomicLong(0);
+    private final Handler handler;
+    private final Metrics metrics;
+    private final Thread consumer;
+    private volatile long tail = 0;
+    private volatile boolean waiting = false;
+    private Sketch lastCaretSketch = null;
+    private long lastCaretSequence = -1;
+
+    EditorEventRing(@NotNull Handler handler, @NotNull Metrics metrics) {
+        this.handler = handler;
+        this.metrics = metrics;
+        this.consumer = new Thread(this::consume, "wakatime-editor-events");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * Publishes an editor event, meant to be called from the EDT.
+     *
+     * @param lineno    The 1-based line of the caret
+     * @param cursorpos The offset of the caret in the current tab
+     * @return Whether the event was accepted, {@code false} if the ring is full
+     */
+    boolean publish(@NotNull Sketch sketch, boolean isWrite, int lineno, int cursorpos) {
+        long caret = ((long) lineno << 32) | (cursorpos & 0xFFFFFFFFL);
+        if (!isWrite && sketch == lastCaretSketch) {
+            int i = (int) (lastCaretSequence & MASK);
+            if (published.get(i) == lastCaretSequence + 1) {
+                timestamps.set(i, System.currentTimeMillis());
+                carets.set(i, caret);
+
+                // If the consumer took the event meanwhile it may have missed the update, so it is published again
+                if (published.get(i) == lastCaretSequence + 1)
+                    return true;
+            }
+        }
+
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= CAPACITY) {
+                metrics.eventDropped();
+                return false;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        int i = (int) (seq & MASK);
+        sketches[i] = sketch;
+        timestamps.set(i, System.currentTimeMillis());
+        writes[i] = isWrite;
+        carets.set(i, caret);
+        published.set(i, seq + 1);
+
+        if (!isWrite) {
+            lastCaretSketch = sketch;
+            lastCaretSequence = seq;
+        }
+
+        if (waiting) LockSupport.unpark(consumer);
+        return true;
+    }
+
+    private void consume() {
+        while (true) {
+            long seq = tail;
+            int i = (int) (seq & MASK);
+            if (published.get(i) != seq + 1) {
+                waiting = true;
+                if (published.get(i) != seq + 1) LockSupport.park(this);
+                waiting = false;
+                continue;
+            }
+
+            // Taken before reading, from now on the publisher doesn't update the event in place
+            published.set(i, 0);
+            Sketch sketch = sketches[i];
+            long timestamp = timestamps.get(i);
+            boolean isWrite = writes[i];
+            long caret = carets.get(i);
+            sketches[i] = null;
+            tail = seq + 1;
+
+            try {
+                handler.handle(sketch, timestamp, isWrite, (int) (caret >>> 32), (int) caret);
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Failed handling editor event.", ex);
+            }
+        }
+    }
+
+    interface Handler {
+        void handle(@NotNull Sketch sketch, long timestampMillis, boolean isWrite, int lineno, int cursorpos);
+    }
+}
@@ -0,0 +1,198 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Computes the language, the number of lines and the git branch of the files heartbeats are sent for. Results are
+ * cached by path and recomputed only when the modification time or the size of the file changes, the branch is
+ * cached by repository and recomputed when {@code .git/HEAD} changes. Nothing here is meant to run on the EDT.
+ */
+class EntityMetadataCache {
+    private static final int MAX_ENTRIES = 256;
+    private static final long NO_REPOSITORY_RECHECK_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final Map<String, String> LANGUAGES = new HashMap<>();
+
+    static {
+        LANGUAGES.put("pde", "Java");
+        LANGUAGES.put("java", "Java");
+        LANGUAGES.put("pyde", "Python");
+        LANGUAGES.put("py", "Python");
+        LANGUAGES.put("js", "JavaScript");
+        LANGUAGES.put("coffee", "CoffeeScript");
+        LANGUAGES.put("glsl", "GLSL");
+        LANGUAGES.put("vert", "GLSL");
+        LANGUAGES.put("frag", "GLSL");
+        LANGUAGES.put("geom", "GLSL");
+        LANGUAGES.put("json", "JSON");
+        LANGUAGES.put("html", "HTML");
+        LANGUAGES.put("htm", "HTML");
+        LANGUAGES.put("css", "CSS");
+    }
+
+    private final Map<String, Entry> files = new ConcurrentHashMap<>();
+    private final Map<File, Repository> repositories = new ConcurrentHashMap<>();
+
+    /**
+     * @return The language for the file extension or {@code null} if it isn't known
+     */
+    @Nullable
+    static String languageOf(@NotNull String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot == -1 || dot < path.lastIndexOf(File.separatorChar)) return null;
+        return LANGUAGES.get(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static int countLines(@NotNull File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int lines = 0;
+            boolean endsWithNewline = true;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++)
+                    if (buffer[i] == '\n') lines++;
+
+                if (read > 0) endsWithNewline = buffer[read - 1] == '\n';
+            }
+
+            return endsWithNewline ? lines : lines + 1;
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Finds the {@code HEAD} file of the repository containing {@code dir}, following {@code .git} files of worktrees.
+     */
+    @Nullable
+    private static File findHead(@NotNull File dir) {
+        for (File current = dir; current != null; current = current.getParentFile()) {
+            File git = new File(current, ".git");
+            if (git.isDirectory()) return new File(git, "HEAD");
+
+            if (git.isFile()) {
+                try {
+                    String content = new String(Files.readAllBytes(git.toPath()), StandardCharsets.UTF_8).trim();
+                    if (content.startsWith("gitdir:")) {
+                        File gitDir = new File(content.substring(7).trim());
+                        if (!gitDir.isAbsolute()) gitDir = new File(current, gitDir.getPath());
+                        return new File(gitDir, "HEAD");
+                    }
+                } catch (IOException ex) {
+                    return null;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    @Nullable
+    private static String readBranch(@NotNull File head) {
+        try {
+            String content = new String(Files.readAllBytes(head.toPath()), StandardCharsets.UTF_8).trim();
+            if (content.startsWith("ref: refs/heads/")) return content.substring(16);
+            else return null; // Detached HEAD
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    @NotNull
+    Metadata get(@NotNull String path) {
+        File file = new File(path);
+        long modified = file.lastModified();
+        long size = file.length();
+
+        Entry entry = files.get(path);
+        if (entry == null || entry.modified != modified || entry.size != size) {
+            if (files.size() >= MAX_ENTRIES) files.clear();
+
+            entry = new Entry(modified, size, countLines(file));
+            files.put(path, entry);
+        }
+
+        File dir = file.getParentFile();
+        return new Metadata(languageOf(path), entry.lines, dir == null ? null : branch(dir));
+    }
+
+    @Nullable
+    private String branch(@NotNull File dir) {
+        Repository repo = repositories.get(dir);
+        if (repo == null || (repo.head == null && System.nanoTime() - repo.checkedAt > NO_REPOSITORY_RECHECK_NANOS)) {
+            if (repositories.size() >= MAX_ENTRIES) repositories.clear();
+
+            repo = new Repository(findHead(dir));
+            repositories.put(dir, repo);
+        }
+
+        return repo.branch();
+    }
+
+    /**
+     * What is known about a file, {@code null} and {@code -1} mean unknown.
+     */
+    static final class Metadata {
+        final String language;
+        final int lines;
+        final String branch;
+
+        Metadata(@Nullable String language, int lines, @Nullable String branch) {
+            this.language = language;
+            this.lines = lines;
+            this.branch = branch;
+        }
+    }
+
+    private static final class Entry {
+        final long modified;
+        final long size;
+        final int lines;
+
+        Entry(long modified, long size, int lines) {
+            this.modified = modified;
+            this.size = size;
+            this.lines = lines;
+        }
+    }
+
+    private static final class Repository {
+        final File head;
+        final long checkedAt = System.nanoTime();
+        private volatile long headModified = Long.MIN_VALUE;
+        private volatile String branch = null;
+
+        Repository(@Nullable File head) {
+            this.head = head;
+            if (head != null) LOG.config("Found git repository: " + head.getParentFile());
+        }
+
+        @Nullable
+        String branch() {
+            if (head == null) return null;
+
+            long modified = head.lastModified();
+            if (modified != headModified) {
+                branch = readBranch(head);
+                headModified = modified;
+            }
+
+            return branch;
+        }
+    }
+}
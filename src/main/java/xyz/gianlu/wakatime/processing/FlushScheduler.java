@@ -0,0 +1,44 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the flush on the scheduler at the earliest of the requested times. Requesting a flush later than the one
+ * already scheduled does nothing, requesting an earlier one moves it forward. Nothing runs unless requested.
+ */
+class FlushScheduler {
+    private final ScheduledExecutorService executor;
+    private final Runnable flush;
+    private ScheduledFuture<?> next = null;
+    private long nextAt = 0;
+    private long generation = 0;
+
+    FlushScheduler(@NotNull ScheduledExecutorService executor, @NotNull Runnable flush) {
+        this.executor = executor;
+        this.flush = flush;
+    }
+
+    synchronized void schedule(long delay, @NotNull TimeUnit unit) {
+        long at = System.nanoTime() + unit.toNanos(delay);
+        if (next != null && nextAt - at <= 0)
+            return;
+
+        if (next != null) next.cancel(false);
+
+        long id = ++generation;
+        nextAt = at;
+        next = executor.schedule(() -> run(id), delay, unit);
+    }
+
+    private void run(long id) {
+        synchronized (this) {
+            if (id == generation) next = null;
+        }
+
+        flush.run();
+    }
+}
@@ -0,0 +1,232 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar list of heartbeats. Timestamps are kept in a {@code long[]}, the write flags in a bitset and
+ * entity, project and language as ids into a {@link Dictionary} shared between batches, so a backlog of many
+ * heartbeats for a handful of files costs a few bytes per record. Records are read by index, without creating
+ * an object for each of them. Not thread-safe.
+ */
+class HeartbeatBatch {
+    private static final int INITIAL_CAPACITY = 64;
+    private final Dictionary dictionary;
+    private final BitSet writes = new BitSet();
+    private long[] timestamps;
+    private int[] entities;
+    private int[] projects;
+    private int[] languages;
+    private int[] branches;
+    private int[] linenos;
+    private int[] cursorpos;
+    private int[] lines;
+    private int size = 0;
+
+    HeartbeatBatch(@NotNull Dictionary dictionary) {
+        this.dictionary = dictionary;
+        this.timestamps = new long[INITIAL_CAPACITY];
+        this.entities = new int[INITIAL_CAPACITY];
+        this.projects = new int[INITIAL_CAPACITY];
+        this.languages = new int[INITIAL_CAPACITY];
+        this.branches = new int[INITIAL_CAPACITY];
+        this.linenos = new int[INITIAL_CAPACITY];
+        this.cursorpos = new int[INITIAL_CAPACITY];
+        this.lines = new int[INITIAL_CAPACITY];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) return;
+
+        int newCapacity = Math.max(capacity, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        entities = Arrays.copyOf(entities, newCapacity);
+        projects = Arrays.copyOf(projects, newCapacity);
+        languages = Arrays.copyOf(languages, newCapacity);
+        branches = Arrays.copyOf(branches, newCapacity);
+        linenos = Arrays.copyOf(linenos, newCapacity);
+        cursorpos = Arrays.copyOf(cursorpos, newCapacity);
+        lines = Arrays.copyOf(lines, newCapacity);
+    }
+
+    void add(@NotNull String entity, long timestamp, boolean isWrite, @Nullable String project, @Nullable String language) {
+        add(entity, timestamp, isWrite, project, language, null, -1, -1, -1);
+    }
+
+    /**
+     * @param lineno    The 1-based line of the cursor, {@code -1} if unknown
+     * @param cursorpos The offset of the cursor in the file, {@code -1} if unknown
+     * @param lines     The number of lines in the file, {@code -1} if unknown
+     */
+    void add(@NotNull String entity, long timestamp, boolean isWrite, @Nullable String project, @Nullable String language,
+             @Nullable String branch, int lineno, int cursorpos, int lines) {
+        ensureCapacity(size + 1);
+        timestamps[size] = timestamp;
+        writes.set(size, isWrite);
+        entities[size] = dictionary.id(entity);
+        projects[size] = dictionary.id(project);
+        languages[size] = dictionary.id(language);
+        branches[size] = dictionary.id(branch);
+        this.linenos[size] = lineno;
+        this.cursorpos[size] = cursorpos;
+        this.lines[size] = lines;
+        size++;
+    }
+
+    /**
+     * Appends record {@code i} of {@code source}, which must share the same dictionary.
+     */
+    void add(@NotNull HeartbeatBatch source, int i) {
+        ensureCapacity(size + 1);
+        timestamps[size] = source.timestamps[i];
+        writes.set(size, source.writes.get(i));
+        entities[size] = source.entities[i];
+        projects[size] = source.projects[i];
+        languages[size] = source.languages[i];
+        branches[size] = source.branches[i];
+        linenos[size] = source.linenos[i];
+        cursorpos[size] = source.cursorpos[i];
+        lines[size] = source.lines[i];
+        size++;
+    }
+
+    /**
+     * Moves up to {@code max} records from the start of this batch to the end of {@code target}.
+     *
+     * @return The number of moved records
+     */
+    int drainTo(@NotNull HeartbeatBatch target, int max) {
+        int count = Math.min(size, max);
+        if (count <= 0) return 0;
+
+        target.ensureCapacity(target.size + count);
+        System.arraycopy(timestamps, 0, target.timestamps, target.size, count);
+        System.arraycopy(entities, 0, target.entities, target.size, count);
+        System.arraycopy(projects, 0, target.projects, target.size, count);
+        System.arraycopy(languages, 0, target.languages, target.size, count);
+        System.arraycopy(branches, 0, target.branches, target.size, count);
+        System.arraycopy(linenos, 0, target.linenos, target.size, count);
+        System.arraycopy(cursorpos, 0, target.cursorpos, target.size, count);
+        System.arraycopy(lines, 0, target.lines, target.size, count);
+        for (int i = 0; i < count; i++) target.writes.set(target.size + i, writes.get(i));
+        target.size += count;
+
+        removeFirst(count);
+        return count;
+    }
+
+    /**
+     * Removes the first {@code count} records.
+     */
+    void removeFirst(int count) {
+        count = Math.min(count, size);
+        int remaining = size - count;
+        System.arraycopy(timestamps, count, timestamps, 0, remaining);
+        System.arraycopy(entities, count, entities, 0, remaining);
+        System.arraycopy(projects, count, projects, 0, remaining);
+        System.arraycopy(languages, count, languages, 0, remaining);
+        System.arraycopy(branches, count, branches, 0, remaining);
+        System.arraycopy(linenos, count, linenos, 0, remaining);
+        System.arraycopy(cursorpos, count, cursorpos, 0, remaining);
+        System.arraycopy(lines, count, lines, 0, remaining);
+
+        BitSet shifted = writes.get(count, Math.max(count, size));
+        writes.clear();
+        writes.or(shifted);
+        size = remaining;
+    }
+
+    void clear() {
+        writes.clear();
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int entityId(int i) {
+        return entities[i];
+    }
+
+    int projectId(int i) {
+        return projects[i];
+    }
+
+    @NotNull
+    String entity(int i) {
+        return dictionary.get(entities[i]);
+    }
+
+    long timestamp(int i) {
+        return timestamps[i];
+    }
+
+    boolean isWrite(int i) {
+        return writes.get(i);
+    }
+
+    @Nullable
+    String project(int i) {
+        return dictionary.get(projects[i]);
+    }
+
+    @Nullable
+    String language(int i) {
+        return dictionary.get(languages[i]);
+    }
+
+    @Nullable
+    String branch(int i) {
+        return dictionary.get(branches[i]);
+    }
+
+    int lineno(int i) {
+        return linenos[i];
+    }
+
+    int cursorpos(int i) {
+        return cursorpos[i];
+    }
+
+    int lines(int i) {
+        return lines[i];
+    }
+
+    /**
+     * Maps strings to ids and back, {@code null} is always {@code -1}. Safe to share between threads.
+     */
+    static final class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        synchronized int id(@Nullable String str) {
+            if (str == null) return -1;
+
+            Integer id = ids.get(str);
+            if (id == null) {
+                id = strings.size();
+                ids.put(str, id);
+                strings.add(str);
+            }
+
+            return id;
+        }
+
+        @Nullable
+        synchronized String get(int id) {
+            return id < 0 ? null : strings.get(id);
+        }
+    }
+}
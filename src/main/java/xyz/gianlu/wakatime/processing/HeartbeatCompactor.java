@@ -0,0 +1,53 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Removes the heartbeats of a batch that carry no new information, applying the same rules as
+ * {@link HeartbeatThrottle} to the batch as a whole. Batches can hold heartbeats the throttle never compared:
+ * writes, which always pass it, heartbeats recovered from the spool and failed batches merged with new ones.
+ * <p>
+ * Going through the batch in order and separately for each project, a heartbeat is kept if it is the first of its
+ * project, if it is for a different entity than the last kept one (a transition), if it is a write that isn't an
+ * exact duplicate of the last kept one, or if at least {@code frequency} seconds passed since the last kept one.
+ * Not thread-safe.
+ */
+class HeartbeatCompactor {
+    private final long frequency;
+    private final Map<Integer, Integer> lastKept = new HashMap<>(); // Project id to index in the target
+
+    HeartbeatCompactor(long frequency) {
+        this.frequency = frequency;
+    }
+
+    /**
+     * Replaces the content of {@code target} with the heartbeats of {@code source} worth sending, in order.
+     */
+    void compact(@NotNull HeartbeatBatch source, @NotNull HeartbeatBatch target) {
+        target.clear();
+        lastKept.clear();
+
+        for (int i = 0; i < source.size(); i++) {
+            int project = source.projectId(i);
+            Integer last = lastKept.get(project);
+            if (last == null || keep(source, i, target, last)) {
+                lastKept.put(project, target.size());
+                target.add(source, i);
+            }
+        }
+    }
+
+    private boolean keep(@NotNull HeartbeatBatch source, int i, @NotNull HeartbeatBatch target, int last) {
+        if (source.entityId(i) != target.entityId(last))
+            return true;
+
+        long timestamp = source.timestamp(i);
+        if (source.isWrite(i))
+            return !target.isWrite(last) || target.timestamp(last) != timestamp;
+
+        return target.timestamp(last) + frequency < timestamp;
+    }
+}
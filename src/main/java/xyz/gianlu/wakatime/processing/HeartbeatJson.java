@@ -0,0 +1,72 @@
+package xyz.gianlu.wakatime.processing;
+
+import com.google.gson.stream.JsonWriter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Serializes heartbeats field by field straight into a stream, without building a JSON tree or string first.
+ * The underlying writer is flushed but never closed.
+ */
+final class HeartbeatJson {
+
+    private HeartbeatJson() {
+    }
+
+    private static void writeMetadata(@NotNull JsonWriter writer, @NotNull HeartbeatBatch batch, int i) throws IOException {
+        String branch = batch.branch(i);
+        if (branch != null) writer.name("branch").value(branch);
+        if (batch.lineno(i) != -1) writer.name("lineno").value(batch.lineno(i));
+        if (batch.cursorpos(i) != -1) writer.name("cursorpos").value(batch.cursorpos(i));
+        if (batch.lines(i) != -1) writer.name("lines").value(batch.lines(i));
+    }
+
+    /**
+     * Writes the records of the batch starting at {@code from} in the format wakatime-cli expects for {@code --extra-heartbeats}.
+     */
+    static void writeCli(@NotNull Writer out, @NotNull HeartbeatBatch batch, int from) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (int i = from; i < batch.size(); i++) {
+            writer.beginObject();
+            writer.name("entity").value(batch.entity(i));
+            writer.name("timestamp").value(batch.timestamp(i));
+            writer.name("is_write").value(batch.isWrite(i));
+            String project = batch.project(i);
+            if (project != null) writer.name("project").value(project);
+            String language = batch.language(i);
+            if (language != null) writer.name("language").value(language);
+            writeMetadata(writer, batch, i);
+            writer.endObject();
+        }
+
+        writer.endArray();
+        writer.flush();
+    }
+
+    /**
+     * Writes the whole batch in the format of the bulk heartbeats API endpoint.
+     */
+    static void writeApi(@NotNull Writer out, @NotNull HeartbeatBatch batch) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (int i = 0; i < batch.size(); i++) {
+            writer.beginObject();
+            writer.name("entity").value(batch.entity(i));
+            writer.name("type").value("file");
+            writer.name("time").value(batch.timestamp(i));
+            writer.name("is_write").value(batch.isWrite(i));
+            String project = batch.project(i);
+            if (project != null) writer.name("project").value(project);
+            String language = batch.language(i);
+            if (language != null) writer.name("language").value(language);
+            writeMetadata(writer, batch, i);
+            writer.endObject();
+        }
+
+        writer.endArray();
+        writer.flush();
+    }
+}
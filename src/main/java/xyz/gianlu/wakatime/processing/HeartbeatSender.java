@@ -0,0 +1,17 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+
+interface HeartbeatSender {
+
+    /**
+     * Sends a batch of heartbeats. The batch is not modified until the returned future has completed.
+     *
+     * @param batch The heartbeats, never empty
+     * @return Completes with the outcome, possibly from another thread
+     */
+    @NotNull
+    CompletableFuture<SendResult> send(@NotNull HeartbeatBatch batch);
+}
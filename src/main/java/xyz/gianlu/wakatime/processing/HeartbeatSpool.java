@@ -0,0 +1,376 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.logging.Level;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Append-only on-disk log of heartbeats that haven't been delivered yet.
+ * <p>
+ * Records are written into memory-mapped segments of fixed size, a new segment is started when the current one
+ * is full. Each record is {@code [int length][payload]} and the length is written last, so a record that was
+ * cut short by a crash reads as the zero-filled end of the segment. Fields added over time are written at the end of
+ * the payload, so records written by older versions read with those fields unknown. The position up to which records have been
+ * delivered is kept in a separate mapped file and segments entirely before it are deleted.
+ * <p>
+ * The spool of another live instance can be opened with {@link #openForeign(File)} to read and commit its records
+ * without appending to it, see {@link SpoolCoordinator}.
+ */
+class HeartbeatSpool {
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private final File dir;
+    private final FileLock lock; // null if the spool belongs to another live instance
+    private final MappedByteBuffer committed;
+    private MappedByteBuffer segment = null; // The segment being appended to, null if not owned
+    private long segmentId;
+
+    private HeartbeatSpool(@NotNull File dir, @Nullable FileLock lock) throws IOException {
+        this.dir = dir;
+        this.lock = lock;
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "committed"), "rw")) {
+            committed = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        }
+
+        long[] ids = listSegments();
+        if (lock == null) {
+            segmentId = ids.length == 0 ? committedSegment() : ids[ids.length - 1];
+            return;
+        }
+
+        segmentId = ids.length == 0 ? Math.max(1, committedSegment()) : ids[ids.length - 1];
+        openSegment(segmentId);
+
+        int position = 0;
+        while (position <= SEGMENT_SIZE - 4) {
+            int length = segment.getInt(position);
+            if (length <= 0 || position + 4 + length > SEGMENT_SIZE) break;
+            position += 4 + length;
+        }
+
+        segment.position(position);
+
+        if (ids.length == 0 || committedSegment() < ids[0]) {
+            committed.putLong(0, ids.length == 0 ? segmentId : ids[0]);
+            committed.putLong(8, 0);
+        }
+    }
+
+    /**
+     * Opens the spool in the given directory.
+     *
+     * @return The spool or {@code null} if it is in use by someone else or cannot be opened
+     */
+    @Nullable
+    static HeartbeatSpool open(@NotNull File dir) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOG.warning("Cannot create spool directory: " + dir);
+            return null;
+        }
+
+        try {
+            FileLock lock = tryLock(dir);
+            if (lock == null) {
+                LOG.warning("Heartbeats spool is in use by another instance, keeping heartbeats in memory only.");
+                return null;
+            }
+
+            return new HeartbeatSpool(dir, lock);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed opening heartbeats spool.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the spool of another instance. If that instance has exited the spool is taken over, otherwise it is
+     * opened without the lock and can only be replayed and committed.
+     *
+     * @return The spool or {@code null} if it cannot be opened
+     */
+    @Nullable
+    static HeartbeatSpool openForeign(@NotNull File dir) {
+        if (!new File(dir, "committed").exists())
+            return null;
+
+        try {
+            return new HeartbeatSpool(dir, tryLock(dir));
+        } catch (IOException | OverlappingFileLockException ex) {
+            LOG.log(Level.CONFIG, "Failed opening spool " + dir, ex);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static FileLock tryLock(@NotNull File dir) throws IOException {
+        @SuppressWarnings("resource")
+        FileChannel channel = new RandomAccessFile(new File(dir, "lock"), "rw").getChannel();
+        FileLock lock = channel.tryLock();
+        if (lock == null) channel.close();
+        return lock;
+    }
+
+    private static void writeString(@NotNull ByteBuffer buffer, @Nullable byte[] str) {
+        if (str == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(str.length);
+            buffer.put(str);
+        }
+    }
+
+    @Nullable
+    private static String readString(@NotNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+
+        byte[] str = new byte[length];
+        buffer.get(str);
+        return new String(str, StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    private static byte[] bytes(@Nullable String str) {
+        return str == null ? null : str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(@Nullable byte[] str) {
+        return 4 + (str == null ? 0 : str.length);
+    }
+
+    @NotNull
+    private File segmentFile(long id) {
+        return new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    @NotNull
+    private long[] listSegments() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) return new long[0];
+
+        long[] ids = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            ids[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private void openSegment(long id) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(id), "rw")) {
+            segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+
+        segmentId = id;
+    }
+
+    @NotNull
+    private ByteBuffer readSegment(long id) throws IOException {
+        if (segment != null && id == segmentId) return segment.duplicate();
+        else return ByteBuffer.wrap(Files.readAllBytes(segmentFile(id).toPath()));
+    }
+
+    /**
+     * Follows the segments the owner has started since the spool was opened.
+     */
+    private void refreshSegments() {
+        if (lock != null) return;
+
+        long[] ids = listSegments();
+        if (ids.length > 0) segmentId = ids[ids.length - 1];
+    }
+
+    /**
+     * @return The name of the spool directory, the same whichever instance opens it
+     */
+    @NotNull
+    String name() {
+        return dir.getName();
+    }
+
+    /**
+     * @return Whether this instance holds the lock of the spool, so it can be appended to and deleted
+     */
+    boolean isOwned() {
+        return lock != null;
+    }
+
+    private long committedSegment() {
+        return committed.getLong(0);
+    }
+
+    private int committedOffset() {
+        return (int) committed.getLong(8);
+    }
+
+    /**
+     * Writes record {@code i} of the batch at the end of the spool.
+     */
+    synchronized void append(@NotNull HeartbeatBatch batch, int i) throws IOException {
+        byte[] entity = bytes(batch.entity(i));
+        byte[] project = bytes(batch.project(i));
+        byte[] language = bytes(batch.language(i));
+        byte[] branch = bytes(batch.branch(i));
+        int length = 8 + 1 + sizeOf(entity) + sizeOf(project) + sizeOf(language) + sizeOf(branch) + 4 + 4 + 4;
+
+        if (segment.remaining() < 4 + length) {
+            segment.force();
+            openSegment(segmentId + 1);
+        }
+
+        int start = segment.position();
+        segment.position(start + 4);
+        segment.putLong(batch.timestamp(i));
+        segment.put((byte) (batch.isWrite(i) ? 1 : 0));
+        writeString(segment, entity);
+        writeString(segment, project);
+        writeString(segment, language);
+        writeString(segment, branch);
+        segment.putInt(batch.lineno(i));
+        segment.putInt(batch.cursorpos(i));
+        segment.putInt(batch.lines(i));
+        segment.putInt(start, length);
+    }
+
+    /**
+     * Marks the oldest {@code count} uncommitted records as delivered and deletes the segments that are no longer needed.
+     */
+    synchronized void commit(int count) throws IOException {
+        refreshSegments();
+        long id = committedSegment();
+        int offset = committedOffset();
+
+        ByteBuffer buffer = null;
+        long bufferId = -1;
+        for (int i = 0; i < count; ) {
+            if (bufferId != id) {
+                buffer = readSegment(id);
+                bufferId = id;
+            }
+
+            int length = offset <= buffer.capacity() - 4 ? buffer.getInt(offset) : 0;
+            if (length <= 0 || offset + 4 + length > buffer.capacity()) {
+                if (id >= segmentId) break;
+
+                id++;
+                offset = 0;
+                continue;
+            }
+
+            offset += 4 + length;
+            i++;
+        }
+
+        committed.putLong(0, id);
+        committed.putLong(8, offset);
+        committed.force();
+
+        for (long old : listSegments()) {
+            if (old >= id || old == segmentId) break;
+            if (!segmentFile(old).delete())
+                LOG.config("Cannot delete spool segment " + old + " yet.");
+        }
+    }
+
+    /**
+     * Adds the heartbeats that were appended but never committed to {@code heartbeats}.
+     *
+     * @return The number of heartbeats added
+     */
+    int replay(@NotNull HeartbeatBatch heartbeats) throws IOException {
+        return replay(heartbeats, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds up to {@code max} of the oldest heartbeats that were appended but never committed to {@code heartbeats}.
+     *
+     * @return The number of heartbeats added
+     */
+    synchronized int replay(@NotNull HeartbeatBatch heartbeats, int max) throws IOException {
+        refreshSegments();
+        int count = 0;
+        long fromSegment = committedSegment();
+        int fromOffset = committedOffset();
+
+        for (long id : listSegments()) {
+            if (id < fromSegment) continue;
+
+            ByteBuffer buffer = readSegment(id);
+            int position = id == fromSegment ? fromOffset : 0;
+            while (count < max && position <= buffer.capacity() - 4) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + 4 + length > buffer.capacity()) break;
+
+                buffer.position(position + 4);
+                long timestamp = buffer.getLong();
+                boolean isWrite = buffer.get() != 0;
+                String entity = readString(buffer);
+                String project = readString(buffer);
+                String language = readString(buffer);
+
+                String branch = null;
+                int lineno = -1, cursorpos = -1, lines = -1;
+                if (buffer.position() < position + 4 + length) {
+                    branch = readString(buffer);
+                    lineno = buffer.getInt();
+                    cursorpos = buffer.getInt();
+                    lines = buffer.getInt();
+                }
+
+                heartbeats.add(entity, timestamp, isWrite, project, language, branch, lineno, cursorpos, lines);
+                count++;
+
+                position += 4 + length;
+            }
+        }
+
+        return count;
+    }
+
+    synchronized void close() {
+        if (segment != null) segment.force();
+        committed.force();
+        if (lock == null) return;
+
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * Closes an owned spool and deletes its files, and its directory if nothing else is in there.
+     */
+    synchronized void delete() {
+        close();
+
+        File[] files = dir.listFiles((d, name) -> name.equals("committed") || name.equals("lock")
+                || (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)));
+        if (files != null) {
+            for (File file : files)
+                if (!file.delete()) LOG.config("Cannot delete " + file);
+        }
+
+        if (!dir.delete()) LOG.config("Not deleting spool directory " + dir);
+    }
+}
@@ -0,0 +1,88 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decides which heartbeats are worth sending, safe to use from several threads.
+ * <p>
+ * Each entity is throttled on its own: a heartbeat goes through if it is a write, if the entity hasn't been
+ * sent for {@code frequency} seconds or if it is a different entity than the last one of the same project.
+ * Switching between sketch windows therefore doesn't defeat the throttle, while tab switches inside a sketch are
+ * still reported. Both tables are bounded, when they grow too big the least recently used entries are evicted.
+ */
+class HeartbeatThrottle {
+    private static final int MAX_ENTRIES = 256;
+    private final long frequency;
+    private final Map<String, EntityEntry> entities = new ConcurrentHashMap<>();
+    private final Map<String, ProjectEntry> projects = new ConcurrentHashMap<>();
+
+    HeartbeatThrottle(long frequency) {
+        this.frequency = frequency;
+    }
+
+    /**
+     * Removes the least recently accessed entry other than {@code keep}.
+     */
+    private static void evictOldest(@NotNull Map<String, ? extends Entry> map, @NotNull String keep) {
+        String oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (Map.Entry<String, ? extends Entry> entry : map.entrySet()) {
+            long time = entry.getValue().accessed;
+            if (time < oldestTime && !entry.getKey().equals(keep)) {
+                oldest = entry.getKey();
+                oldestTime = time;
+            }
+        }
+
+        if (oldest != null) map.remove(oldest);
+    }
+
+    /**
+     * @param timestamp The heartbeat time, in seconds
+     * @return Whether the heartbeat should be sent
+     */
+    boolean shouldSend(@Nullable String project, @NotNull String entity, long timestamp, boolean isWrite) {
+        boolean transition = false;
+        if (project != null) {
+            // Evicting before inserting, so that the entry being used is never the one removed
+            if (!projects.containsKey(project) && projects.size() >= MAX_ENTRIES) evictOldest(projects, project);
+
+            ProjectEntry entry = projects.computeIfAbsent(project, k -> new ProjectEntry());
+            entry.accessed = System.nanoTime();
+            transition = !entity.equals(entry.entity.getAndSet(entity));
+        }
+
+        if (!entities.containsKey(entity) && entities.size() >= MAX_ENTRIES) evictOldest(entities, entity);
+
+        EntityEntry entry = entities.computeIfAbsent(entity, k -> new EntityEntry());
+        entry.accessed = System.nanoTime();
+
+        AtomicLong last = entry.sent;
+        while (true) {
+            long prev = last.get();
+            if (!isWrite && !transition && prev + frequency >= timestamp)
+                return false;
+
+            if (last.compareAndSet(prev, Math.max(prev, timestamp)))
+                return true;
+        }
+    }
+
+    private static class Entry {
+        volatile long accessed = System.nanoTime();
+    }
+
+    private static final class EntityEntry extends Entry {
+        final AtomicLong sent = new AtomicLong(Long.MIN_VALUE / 2); // The time of the last heartbeat sent
+    }
+
+    private static final class ProjectEntry extends Entry {
+        final AtomicReference<String> entity = new AtomicReference<>();
+    }
+}
@@ -0,0 +1,113 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.GZIPOutputStream;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Sends heartbeats straight to the bulk heartbeats endpoint without going through wakatime-cli.
+ * <p>
+ * Batches are sent one at a time from the flush thread and the response is always consumed entirely, so
+ * {@link HttpURLConnection} keeps reusing the same keep-alive connection between flushes.
+ */
+class HttpSender implements HeartbeatSender {
+    static final String DEFAULT_API_URL = "https://api.wakatime.com/api/v1/users/current/heartbeats.bulk";
+    private static final int DEFAULT_TIMEOUT_SECONDS = 30;
+    private final URL apiUrl;
+    private final int timeoutMillis;
+    private final Proxy proxy;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+    private final byte[] buffer = new byte[4096];
+
+    HttpSender() throws IOException {
+        this(getApiUrl(), ConfigFile.getInt("settings", "timeout", DEFAULT_TIMEOUT_SECONDS), Dependencies.getProxy());
+    }
+
+    HttpSender(@NotNull String apiUrl, int timeoutSeconds, @Nullable Proxy proxy) throws IOException {
+        this.apiUrl = new URL(apiUrl);
+        this.timeoutMillis = (int) TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        this.proxy = proxy;
+
+        LOG.config("HTTP sender using " + this.apiUrl + " with " + timeoutSeconds + "s timeout");
+    }
+
+    @NotNull
+    static String getApiUrl() {
+        String url = ConfigFile.get("settings", "api_url");
+        if (url == null || url.trim().isEmpty()) return DEFAULT_API_URL;
+        else return url.trim();
+    }
+
+    @NotNull
+    static SendResult classify(int code) {
+        if (code == HttpURLConnection.HTTP_CREATED || code == HttpURLConnection.HTTP_ACCEPTED)
+            return SendResult.SUCCESS;
+        else if (code == HttpURLConnection.HTTP_UNAUTHORIZED || code == HttpURLConnection.HTTP_FORBIDDEN || code == HttpURLConnection.HTTP_NOT_FOUND)
+            return SendResult.FATAL; // Invalid API key or api_url
+        else if (code == HttpURLConnection.HTTP_BAD_REQUEST || code == HttpURLConnection.HTTP_ENTITY_TOO_LARGE || code == 422)
+            return SendResult.REJECTED;
+        else
+            return SendResult.RETRYABLE;
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<SendResult> send(@NotNull HeartbeatBatch batch) {
+        try {
+            int code = post(batch);
+            LOG.config("Bulk heartbeats request finished with status " + code);
+            return CompletableFuture.completedFuture(classify(code));
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed sending heartbeats.", ex);
+            return CompletableFuture.completedFuture(SendResult.RETRYABLE);
+        }
+    }
+
+    private int post(@NotNull HeartbeatBatch batch) throws IOException {
+        body.reset();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(body), StandardCharsets.UTF_8))) {
+            HeartbeatJson.writeApi(writer, batch);
+        }
+
+        HttpURLConnection conn = (HttpURLConnection) (proxy == null ? apiUrl.openConnection() : apiUrl.openConnection(proxy));
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.size());
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("Content-Encoding", "gzip");
+        conn.setRequestProperty("Accept", "application/json");
+        conn.setRequestProperty("User-Agent", Wakatime.getPluginName());
+        conn.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(Wakatime.getApiKey().getBytes(StandardCharsets.UTF_8)));
+
+        try (OutputStream out = conn.getOutputStream()) {
+            body.writeTo(out);
+        }
+
+        int code = conn.getResponseCode();
+        InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if (in != null) {
+            try {
+                // Reading the response to the end allows the connection to be reused
+                while (in.read(buffer) != -1) ;
+            } finally {
+                in.close();
+            }
+        }
+
+        return code;
+    }
+}
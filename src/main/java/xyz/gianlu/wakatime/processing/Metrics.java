@@ -0,0 +1,336 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Counters and histograms about what the plugin is doing. Recording is lock-free and allocation-free (except
+ * for the first occurrence of an exit code), so it can be called from the EDT and from the flush thread.
+ */
+class Metrics implements MetricsMXBean {
+    private static final String OBJECT_NAME = "xyz.gianlu.wakatime.processing:type=Metrics";
+    private final IntSupplier queueDepth;
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder compacted = new LongAdder();
+    private final Histogram batchSizes = new Histogram(12);
+    private final Histogram cliLatencyMicros = new Histogram(28);
+    private final Map<Integer, LongAdder> exitCodes = new ConcurrentHashMap<>();
+    private final LongAdder cliTimeouts = new LongAdder();
+    private final Histogram edtNanos = new Histogram(32);
+    private final LongAdder edtTotalNanos = new LongAdder();
+
+    Metrics(@NotNull IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    private static double percentileMillis(@NotNull Histogram micros, double percentile) {
+        return micros.percentile(percentile) / 1000.0;
+    }
+
+    /**
+     * Registers this instance on the platform MBean server, replacing an earlier instance of the plugin.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException | SecurityException ex) {
+            LOG.log(Level.CONFIG, "Cannot register metrics MBean.", ex);
+        }
+    }
+
+    void heartbeatEnqueued() {
+        enqueued.increment();
+    }
+
+    void heartbeatThrottled() {
+        throttled.increment();
+    }
+
+    void eventDropped() {
+        dropped.increment();
+    }
+
+    void batchSent(int size) {
+        batchSizes.record(size);
+        sent.add(size);
+    }
+
+    void batchRejected(int size) {
+        batchSizes.record(size);
+        rejected.add(size);
+    }
+
+    void heartbeatsCompacted(int count) {
+        compacted.add(count);
+    }
+
+    void batchFailed(int size) {
+        batchSizes.record(size);
+        failedBatches.increment();
+    }
+
+    void cliFinished(long elapsedNanos, int exitCode) {
+        cliLatencyMicros.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        exitCodes.computeIfAbsent(exitCode, k -> new LongAdder()).increment();
+    }
+
+    void cliTimedOut() {
+        cliTimeouts.increment();
+    }
+
+    void edtCallback(long elapsedNanos) {
+        edtNanos.record(elapsedNanos);
+        edtTotalNanos.add(elapsedNanos);
+    }
+
+    /**
+     * @return A readable name and value for every metric, in display order
+     */
+    @NotNull
+    Map<String, String> snapshot() {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put("Heartbeats enqueued", String.valueOf(getHeartbeatsEnqueued()));
+        map.put("Heartbeats throttled", String.valueOf(getHeartbeatsThrottled()));
+        map.put("Editor events dropped", String.valueOf(getHeartbeatsDropped()));
+        map.put("Heartbeats sent", String.valueOf(getHeartbeatsSent()));
+        map.put("Heartbeats rejected", String.valueOf(getHeartbeatsRejected()));
+        map.put("Heartbeats compacted", String.valueOf(getHeartbeatsCompacted()));
+        map.put("Failed batches", String.valueOf(getBatchesFailed()));
+        map.put("Queue depth", String.valueOf(getQueueDepth()));
+
+        StringBuilder sizes = new StringBuilder();
+        long[] buckets = getBatchSizeBuckets();
+        long[] counts = getBatchSizeCounts();
+        for (int i = 0; i < buckets.length; i++) {
+            if (counts[i] == 0) continue;
+            if (sizes.length() > 0) sizes.append(", ");
+            sizes.append(i == buckets.length - 1 ? ">" + buckets[i - 1] : "<=" + buckets[i]).append(": ").append(counts[i]);
+        }
+
+        map.put("Batch sizes", sizes.length() == 0 ? "-" : sizes.toString());
+        map.put("CLI invocations", String.valueOf(getCliInvocations()));
+        map.put("CLI latency p50/p90/p99/max", String.format("%.0f / %.0f / %.0f / %.0f ms",
+                getCliLatencyP50Millis(), getCliLatencyP90Millis(), getCliLatencyP99Millis(), getCliLatencyMaxMillis()));
+        map.put("CLI exit codes", getCliExitCodes().toString());
+        map.put("CLI timeouts", String.valueOf(getCliTimeouts()));
+        map.put("EDT callbacks", String.valueOf(getEdtCallbacks()));
+        map.put("EDT time total", String.format("%.1f ms", getEdtCallbackTotalMillis()));
+        map.put("EDT callback p99/max", String.format("%.0f / %.0f us", getEdtCallbackP99Micros(), getEdtCallbackMaxMicros()));
+        return map;
+    }
+
+    @Override
+    public long getHeartbeatsEnqueued() {
+        return enqueued.sum();
+    }
+
+    @Override
+    public long getHeartbeatsThrottled() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getHeartbeatsDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getHeartbeatsSent() {
+        return sent.sum();
+    }
+
+    @Override
+    public long getHeartbeatsRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getHeartbeatsCompacted() {
+        return compacted.sum();
+    }
+
+    @Override
+    public long getBatchesFailed() {
+        return failedBatches.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long[] getBatchSizeBuckets() {
+        return batchSizes.upperBounds();
+    }
+
+    @Override
+    public long[] getBatchSizeCounts() {
+        return batchSizes.counts();
+    }
+
+    @Override
+    public long getCliInvocations() {
+        return cliLatencyMicros.count();
+    }
+
+    @Override
+    public double getCliLatencyP50Millis() {
+        return percentileMillis(cliLatencyMicros, 0.5);
+    }
+
+    @Override
+    public double getCliLatencyP90Millis() {
+        return percentileMillis(cliLatencyMicros, 0.9);
+    }
+
+    @Override
+    public double getCliLatencyP99Millis() {
+        return percentileMillis(cliLatencyMicros, 0.99);
+    }
+
+    @Override
+    public double getCliLatencyMaxMillis() {
+        return cliLatencyMicros.max() / 1000.0;
+    }
+
+    @Override
+    public Map<Integer, Long> getCliExitCodes() {
+        Map<Integer, Long> map = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : exitCodes.entrySet())
+            map.put(entry.getKey(), entry.getValue().sum());
+
+        return map;
+    }
+
+    @Override
+    public long getCliTimeouts() {
+        return cliTimeouts.sum();
+    }
+
+    @Override
+    public long getEdtCallbacks() {
+        return edtNanos.count();
+    }
+
+    @Override
+    public double getEdtCallbackTotalMillis() {
+        return edtTotalNanos.sum() / 1_000_000.0;
+    }
+
+    @Override
+    public double getEdtCallbackP99Micros() {
+        return edtNanos.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getEdtCallbackMaxMicros() {
+        return edtNanos.max() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        enqueued.reset();
+        throttled.reset();
+        dropped.reset();
+        sent.reset();
+        failedBatches.reset();
+        rejected.reset();
+        compacted.reset();
+        batchSizes.reset();
+        cliLatencyMicros.reset();
+        exitCodes.clear();
+        cliTimeouts.reset();
+        edtNanos.reset();
+        edtTotalNanos.reset();
+    }
+
+    /**
+     * Histogram with power of two buckets: bucket {@code i} counts the values up to {@code 2^i}, the last one
+     * counts everything above. Percentiles are reported as the upper bound of the bucket they fall into.
+     */
+    private static final class Histogram {
+        private final AtomicLongArray buckets;
+        private final AtomicLong max = new AtomicLong(0);
+
+        Histogram(int buckets) {
+            this.buckets = new AtomicLongArray(buckets + 1);
+        }
+
+        void record(long value) {
+            int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+            buckets.incrementAndGet(Math.min(bucket, buckets.length() - 1));
+
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) count += buckets.get(i);
+            return count;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double percentile) {
+            long[] counts = counts();
+            long total = 0;
+            for (long count : counts) total += count;
+            if (total == 0) return 0;
+
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length - 1; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(1L << i, max.get());
+            }
+
+            return max.get();
+        }
+
+        @NotNull
+        long[] upperBounds() {
+            long[] bounds = new long[buckets.length()];
+            for (int i = 0; i < bounds.length - 1; i++) bounds[i] = 1L << i;
+            bounds[bounds.length - 1] = Long.MAX_VALUE;
+            return bounds;
+        }
+
+        @NotNull
+        long[] counts() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) counts[i] = buckets.get(i);
+            return counts;
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package xyz.gianlu.wakatime.processing;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link Metrics}, registered as {@code xyz.gianlu.wakatime.processing:type=Metrics}.
+ * Latencies are in milliseconds, EDT times in microseconds.
+ */
+public interface MetricsMXBean {
+    long getHeartbeatsEnqueued();
+
+    long getHeartbeatsThrottled();
+
+    long getHeartbeatsDropped();
+
+    long getHeartbeatsSent();
+
+    long getHeartbeatsRejected();
+
+    long getHeartbeatsCompacted();
+
+    long getBatchesFailed();
+
+    int getQueueDepth();
+
+    /**
+     * @return The upper bounds of the batch size buckets, the last one is unbounded
+     */
+    long[] getBatchSizeBuckets();
+
+    long[] getBatchSizeCounts();
+
+    long getCliInvocations();
+
+    double getCliLatencyP50Millis();
+
+    double getCliLatencyP90Millis();
+
+    double getCliLatencyP99Millis();
+
+    double getCliLatencyMaxMillis();
+
+    Map<Integer, Long> getCliExitCodes();
+
+    long getCliTimeouts();
+
+    long getEdtCallbacks();
+
+    double getEdtCallbackTotalMillis();
+
+    double getEdtCallbackP99Micros();
+
+    double getEdtCallbackMaxMicros();
+
+    void reset();
+}
@@ -0,0 +1,224 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Runs wakatime-cli processes without blocking the caller. Every process gets its stdin written and its output
+ * drained on background threads, is killed if it doesn't exit in time and is always reaped. At most
+ * {@code maxProcesses} are alive at once, a killed process keeps its slot until it has actually exited.
+ * <p>
+ * Everything that runs wakatime-cli or its interpreter goes through {@link #shared()}, so that
+ * {@code cli_max_processes} and {@code cli_timeout} apply to all of it.
+ * <p>
+ * The input is streamed into the pipe through a writer that is kept for the next process once written, so a spawn
+ * doesn't allocate new buffers.
+ */
+class ProcessSupervisor {
+    private static final long KILL_GRACE_SECONDS = 5;
+    private static final int DEFAULT_MAX_PROCESSES = 2;
+    private static final int DEFAULT_TIMEOUT_SECONDS = 60;
+    private static ProcessSupervisor shared = null;
+    private final Semaphore slots;
+    private final long timeoutSeconds;
+    private final ExecutorService io;
+    private final ScheduledExecutorService timer;
+    private final Queue<Stdin> stdins = new ConcurrentLinkedQueue<>(); // Writers not in use
+
+    ProcessSupervisor(int maxProcesses, long timeoutSeconds) {
+        this.slots = new Semaphore(maxProcesses);
+        this.timeoutSeconds = timeoutSeconds;
+
+        AtomicInteger count = new AtomicInteger(0);
+        this.io = Executors.newCachedThreadPool(r -> daemon(r, "wakatime-cli-process-" + count.incrementAndGet()));
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "wakatime-cli-timeout"));
+    }
+
+    @NotNull
+    static synchronized ProcessSupervisor shared() {
+        if (shared == null)
+            shared = new ProcessSupervisor(ConfigFile.getInt("settings", "cli_max_processes", DEFAULT_MAX_PROCESSES),
+                    ConfigFile.getInt("settings", "cli_timeout", DEFAULT_TIMEOUT_SECONDS));
+
+        return shared;
+    }
+
+    @NotNull
+    private static Thread daemon(@NotNull Runnable r, @NotNull String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Starts the process and returns immediately.
+     *
+     * @param input Writes what the process should read from its standard input as a single line, may be {@code null}
+     * @return Completes with the exit code, or exceptionally with {@link TimeoutException} if the process was killed,
+     * {@link RejectedExecutionException} if too many processes are running or {@link IOException} if it couldn't start
+     */
+    @NotNull
+    CompletableFuture<Integer> run(@NotNull String[] cmd, @Nullable CliWorker.Input input) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        if (!slots.tryAcquire()) {
+            result.completeExceptionally(new RejectedExecutionException("Too many wakatime-cli processes running"));
+            return result;
+        }
+
+        return start(cmd, input, null);
+    }
+
+    /**
+     * Waits for a free slot, then starts the process. Only for background threads, like the bootstrap.
+     *
+     * @param output Receives every line the process prints, logged if {@code null}
+     * @return Completes with the exit code, or exceptionally with {@link TimeoutException} if the process was killed
+     * or {@link IOException} if it couldn't start
+     */
+    @NotNull
+    CompletableFuture<Integer> runWhenFree(@NotNull String[] cmd, @Nullable Consumer<String> output) throws InterruptedException {
+        slots.acquire();
+        return start(cmd, null, output);
+    }
+
+    /**
+     * Starts the process in the slot the caller has acquired.
+     */
+    @NotNull
+    private CompletableFuture<Integer> start(@NotNull String[] cmd, @Nullable CliWorker.Input input, @Nullable Consumer<String> output) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        Process process;
+        try {
+            process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        } catch (IOException | RuntimeException ex) {
+            slots.release();
+            result.completeExceptionally(ex);
+            return result;
+        }
+
+        ScheduledFuture<?> timeout = timer.schedule(() -> kill(process, result), timeoutSeconds, TimeUnit.SECONDS);
+
+        if (input != null) {
+            Stdin stdin = stdins.poll();
+            if (stdin == null) stdin = new Stdin();
+
+            Stdin writer = stdin;
+            io.execute(() -> writeInput(process, input, writer));
+        } else {
+            closeQuietly(process.getOutputStream());
+        }
+
+        // The slot is released before completing, so that the caller can start the next process right away
+        io.execute(() -> {
+            try {
+                drain(process.getInputStream(), output);
+                int exitCode = process.waitFor();
+                timeout.cancel(false);
+                slots.release();
+                result.complete(exitCode);
+            } catch (InterruptedException ex) {
+                process.destroyForcibly();
+                slots.release();
+                result.completeExceptionally(ex);
+            }
+        });
+
+        return result;
+    }
+
+    private void kill(@NotNull Process process, @NotNull CompletableFuture<Integer> result) {
+        if (!process.isAlive()) return;
+
+        LOG.warning("wakatime-cli did not exit within " + timeoutSeconds + "s, killing it.");
+        process.destroy();
+        result.completeExceptionally(new TimeoutException("wakatime-cli timed out"));
+
+        timer.schedule(() -> {
+            if (process.isAlive()) process.destroyForcibly();
+        }, KILL_GRACE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the input and closes the pipe, then gives the writer back. This can outlive the process, so the
+     * writer is not tied to its slot.
+     */
+    private void writeInput(@NotNull Process process, @NotNull CliWorker.Input input, @NotNull Stdin stdin) {
+        stdin.target = process.getOutputStream();
+        try {
+            input.writeTo(stdin.writer);
+            stdin.writer.write('\n');
+            stdin.writer.flush();
+        } catch (IOException ex) {
+            // The process exited without reading everything, its exit code tells what happened
+            LOG.log(Level.CONFIG, "Failed writing to wakatime-cli.", ex);
+            stdin.discard();
+        } finally {
+            closeQuietly(stdin.target);
+            stdin.target = null;
+            stdins.offer(stdin);
+        }
+    }
+
+    private static void drain(@NotNull InputStream in, @Nullable Consumer<String> output) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (output != null) output.accept(line);
+                else LOG.config(line);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void closeQuietly(@NotNull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Encodes into the stdin of whichever process it is currently writing for.
+     */
+    private static final class Stdin extends OutputStream {
+        private OutputStream target = null;
+        private Writer writer = newWriter();
+
+        @NotNull
+        private Writer newWriter() {
+            return new BufferedWriter(new OutputStreamWriter(this, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Drops whatever is left in the buffers after a failed write, so that it doesn't end up in the next process.
+         */
+        void discard() {
+            writer = newWriter();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target.write(b);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+    }
+}
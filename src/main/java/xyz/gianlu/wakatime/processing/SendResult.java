@@ -0,0 +1,34 @@
+package xyz.gianlu.wakatime.processing;
+
+/**
+ * Outcome of sending a batch of heartbeats, decides what happens to the batch.
+ */
+enum SendResult {
+    /**
+     * The batch was delivered
+     */
+    SUCCESS,
+    /**
+     * The batch could not be delivered, but the sender has kept it to deliver it itself later (wakatime-cli's offline
+     * queue). The batch is dropped like a delivered one, while the endpoint counts as down
+     */
+    HANDED_OFF,
+    /**
+     * The batch could not be delivered right now (network down, server error, timeout), it is sent again later
+     */
+    RETRYABLE,
+    /**
+     * The batch was not sent because of a local limit (too many wakatime-cli processes running), it is sent again
+     * shortly. Says nothing about the endpoint
+     */
+    BUSY,
+    /**
+     * The heartbeats themselves were refused, sending them again won't help so they are dropped
+     */
+    REJECTED,
+    /**
+     * The setup is broken (invalid API key, unreadable config), the batch is kept and nothing is sent until the
+     * config file changes
+     */
+    FATAL
+}
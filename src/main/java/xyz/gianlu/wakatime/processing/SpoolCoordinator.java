@@ -0,0 +1,81 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+
+import static xyz.gianlu.wakatime.processing.Wakatime.LOG;
+
+/**
+ * Coordinates the plugin instances of several Processing JVMs sharing the same spool directory.
+ * <p>
+ * Every instance appends to its own spool in {@code instance-<id>}. Only the instance holding the lock on
+ * {@code leader.lock} sends heartbeats: its own and those in the spools of the other instances, whether they are
+ * still running or exited without sending everything. The OS releases the lock when the leader JVM exits and
+ * another instance takes over the next time it tries.
+ */
+class SpoolCoordinator {
+    private static final String INSTANCE_PREFIX = "instance-";
+    private final File root;
+    private final File own;
+    private FileChannel leaderChannel = null;
+    private FileLock leaderLock = null;
+
+    SpoolCoordinator(@NotNull File root) {
+        this.root = root;
+        this.own = new File(root, INSTANCE_PREFIX + UUID.randomUUID().toString().substring(0, 8));
+    }
+
+    /**
+     * @return The spool directory of this instance
+     */
+    @NotNull
+    File ownDirectory() {
+        return own;
+    }
+
+    /**
+     * Becomes the leader if no other instance is.
+     *
+     * @return Whether this instance is the leader
+     */
+    synchronized boolean tryLead() {
+        if (leaderLock != null) return true;
+
+        try {
+            if (leaderChannel == null) leaderChannel = new RandomAccessFile(new File(root, "leader.lock"), "rw").getChannel();
+            leaderLock = leaderChannel.tryLock();
+        } catch (IOException ex) {
+            LOG.log(Level.CONFIG, "Failed acquiring the spool leader lock.", ex);
+            return false;
+        }
+
+        if (leaderLock != null) LOG.info("This instance is now sending heartbeats for every Processing instance.");
+        return leaderLock != null;
+    }
+
+    /**
+     * @return The spool directories of the other instances, including the one used before instances had their own
+     */
+    @NotNull
+    List<File> foreignSpools() {
+        List<File> dirs = new ArrayList<>();
+        if (new File(root, "committed").exists()) dirs.add(root);
+
+        File[] instances = root.listFiles((dir, name) -> name.startsWith(INSTANCE_PREFIX));
+        if (instances != null) {
+            for (File dir : instances)
+                if (dir.isDirectory() && !dir.equals(own)) dirs.add(dir);
+        }
+
+        return dirs;
+    }
+}
@@ -0,0 +1,171 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.time.LocalDate;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Window opened from the tool menu, shows the plugin state as it changes, and its metrics and the local coding time
+ * refreshed every second.
+ */
+@SuppressWarnings("serial") // Never serialized
+class StatusDialog extends JDialog {
+    private static final int REFRESH_MILLIS = 1000;
+    private final Wakatime wakatime;
+    private final DefaultTableModel model = new DefaultTableModel(new Object[]{"Metric", "Value"}, 0) {
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+    };
+    private final DefaultTableModel codingTimeModel = new DefaultTableModel(new Object[]{"Name", "Today", "Last 7 days"}, 0) {
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+    };
+    private final JComboBox<String> breakdown = new JComboBox<>(new String[]{"Projects", "Languages", "Files"});
+    private final JLabel codingTimeTotal = new JLabel();
+    private final JTabbedPane tabs = new JTabbedPane();
+    private final JLabel state = new JLabel();
+    private final JButton rollback = new JButton("Roll back wakatime-cli");
+    private final Timer timer = new Timer(REFRESH_MILLIS, e -> refresh());
+    private final Consumer<Wakatime.State> stateListener = s -> SwingUtilities.invokeLater(this::refreshState);
+
+    StatusDialog(@NotNull Frame owner, @NotNull Wakatime wakatime) {
+        super(owner, "Wakatime", false);
+        this.wakatime = wakatime;
+
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setPreferredWidth(180);
+        table.getColumnModel().getColumn(1).setPreferredWidth(320);
+
+        JButton apiKey = new JButton("Set API key...");
+        apiKey.addActionListener(e -> wakatime.showApiKeyPrompt(this));
+
+        rollback.addActionListener(e -> {
+            if (!Dependencies.rollbackCLI())
+                JOptionPane.showMessageDialog(this, "There is no previous wakatime-cli to go back to.", "Wakatime", JOptionPane.WARNING_MESSAGE);
+
+            rollback.setEnabled(CliInstalls.canRollback());
+        });
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 8, 0));
+        buttons.add(rollback);
+        buttons.add(apiKey);
+
+        JPanel bottom = new JPanel(new BorderLayout());
+        bottom.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        bottom.add(state, BorderLayout.CENTER);
+        bottom.add(buttons, BorderLayout.EAST);
+
+        tabs.addTab("Metrics", new JScrollPane(table));
+        if (wakatime.getCodingTime() != null) {
+            JTable codingTimeTable = new JTable(codingTimeModel);
+            codingTimeTable.setFillsViewportHeight(true);
+            codingTimeTable.getColumnModel().getColumn(0).setPreferredWidth(300);
+
+            JPanel top = new JPanel(new BorderLayout());
+            top.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+            top.add(codingTimeTotal, BorderLayout.CENTER);
+            top.add(breakdown, BorderLayout.EAST);
+
+            JPanel codingTime = new JPanel(new BorderLayout());
+            codingTime.add(top, BorderLayout.NORTH);
+            codingTime.add(new JScrollPane(codingTimeTable), BorderLayout.CENTER);
+            tabs.addTab("Coding time", codingTime);
+
+            breakdown.addActionListener(e -> refresh());
+            tabs.addChangeListener(e -> refresh());
+        }
+
+        getContentPane().add(tabs, BorderLayout.CENTER);
+        getContentPane().add(bottom, BorderLayout.SOUTH);
+        setSize(600, 420);
+        setLocationRelativeTo(owner);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+                wakatime.removeStateListener(stateListener);
+            }
+        });
+
+        // The bootstrap may install wakatime-cli while the dialog is open, which changes what can be rolled back
+        wakatime.addStateListener(stateListener);
+        refreshState();
+        refresh();
+        timer.start();
+    }
+
+    private void refreshState() {
+        state.setText("State: " + wakatime.getState());
+        rollback.setEnabled(CliInstalls.canRollback());
+    }
+
+    private void refresh() {
+        if (tabs.getSelectedIndex() == 1) refreshCodingTime();
+
+        Map<String, String> snapshot = wakatime.getMetrics().snapshot();
+        model.setRowCount(snapshot.size());
+
+        int row = 0;
+        for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+            model.setValueAt(entry.getKey(), row, 0);
+            model.setValueAt(entry.getValue(), row, 1);
+            row++;
+        }
+    }
+
+    private void refreshCodingTime() {
+        CodingTimeStore store = wakatime.getCodingTime();
+        if (store == null) return;
+
+        LocalDate today = LocalDate.now();
+        CodingTimeStore.Summary day = store.summary(today, today);
+        CodingTimeStore.Summary week = store.summary(today.minusDays(6), today);
+        codingTimeTotal.setText("Today: " + CodingTimeStore.formatDuration(day.getTotal())
+                + ", last 7 days: " + CodingTimeStore.formatDuration(week.getTotal()));
+
+        Map<String, Long> dayTimes, weekTimes;
+        switch (breakdown.getSelectedIndex()) {
+            case 1:
+                dayTimes = day.getLanguages();
+                weekTimes = week.getLanguages();
+                break;
+            case 2:
+                dayTimes = day.getFiles();
+                weekTimes = week.getFiles();
+                break;
+            default:
+                dayTimes = day.getProjects();
+                weekTimes = week.getProjects();
+                break;
+        }
+
+        Set<String> names = new LinkedHashSet<>(dayTimes.keySet());
+        names.addAll(weekTimes.keySet());
+        codingTimeModel.setRowCount(names.size());
+
+        int row = 0;
+        for (String name : names) {
+            codingTimeModel.setValueAt(breakdown.getSelectedIndex() == 2 ? new File(name).getName() : name, row, 0);
+            codingTimeModel.setValueAt(CodingTimeStore.formatDuration(dayTimes.getOrDefault(name, 0L)), row, 1);
+            codingTimeModel.setValueAt(CodingTimeStore.formatDuration(weekTimes.getOrDefault(name, 0L)), row, 2);
+            row++;
+        }
+    }
+}
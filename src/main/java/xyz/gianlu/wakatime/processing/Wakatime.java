@@ -1,22 +1,21 @@
 package xyz.gianlu.wakatime.processing;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import processing.app.Mode;
 
 import javax.swing.*;
 import java.awt.*;
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,44 +24,67 @@ public class Wakatime {
     private static final String VERSION = Wakatime.class.getPackage().getImplementationVersion();
     private static final long FREQUENCY = 2 * 60; // Max secs between heartbeats for continuous coding
     private static final int QUEUE_TIMEOUT_SECONDS = 30;
-    private static boolean DEBUG = false;
-    private final String IDE_NAME = "Processing";
-    private String lastFile = null;
-    private long lastTime = 0;
-    private ConcurrentLinkedQueue<Heartbeat> heartbeatsQueue = new ConcurrentLinkedQueue<>();
+    private static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    private static final int DEFAULT_WRITE_FLUSH_SECONDS = 2;
+    private static final int DEFAULT_STATS_TIMEOUT_MINUTES = 15;
+    private static final int BUSY_RETRY_SECONDS = 1;
+    private static volatile boolean DEBUG = false;
+    private static final String IDE_NAME = "Processing";
+    private static final String MEMORY_SOURCE = "memory"; // Coding time source when there is no spool
+    private final HeartbeatThrottle throttle = new HeartbeatThrottle(FREQUENCY);
+    private final HeartbeatBatch.Dictionary dictionary = new HeartbeatBatch.Dictionary();
+    private final HeartbeatBatch heartbeatsQueue = new HeartbeatBatch(dictionary); // Guarded by itself
+    private final AtomicInteger heartbeatsQueueSize = new AtomicInteger(0);
+    private final Metrics metrics = new Metrics(heartbeatsQueueSize::get);
     private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final HeartbeatBatch pendingHeartbeats = new HeartbeatBatch(dictionary); // Only accessed from the scheduler
+    private final HeartbeatBatch compactedHeartbeats = new HeartbeatBatch(dictionary); // Only accessed from the scheduler
+    private final HeartbeatCompactor compactor = new HeartbeatCompactor(FREQUENCY);
+    private final EntityMetadataCache metadataCache = new EntityMetadataCache();
+    private HeartbeatSpool pendingSpool = null; // Only accessed from the scheduler, where pendingHeartbeats come from
+    private boolean sending = false; // Only accessed from the scheduler, pendingHeartbeats is in flight while set
+    private boolean leader = false; // Only accessed from the scheduler
+    private boolean paused = false; // Only accessed from the scheduler, set after a fatal send result
+    private CircuitBreaker breaker; // Only accessed from the scheduler
+    private HeartbeatSender sender;
+    private volatile HeartbeatSpool spool;
+    private SpoolCoordinator coordinator = null; // null if this instance sends on its own
+    private CodingTimeStore codingTime = null; // Updated from the scheduler only
+    private volatile FlushScheduler flusher;
+    private volatile State state = State.STARTING;
+    private final List<Consumer<State>> stateListeners = new CopyOnWriteArrayList<>();
+    private int maxBatchSize;
+    private int maxAgeSeconds;
+    private int writeFlushSeconds;
 
     public Wakatime(@NotNull Component parent) {
         LOG.info("Initializing Wakatime plugin v" + VERSION + " (https://wakatime.com/)");
 
         setupDebugging();
         setLoggingLevel();
+        ConfigFile.addListener(() -> {
+            boolean wasDebug = Wakatime.DEBUG;
+            setupDebugging();
+            if (wasDebug != Wakatime.DEBUG) setLoggingLevel();
+        });
+        metrics.register();
+        setupSpool();
+        codingTime = new CodingTimeStore(new File(Dependencies.getResourcesLocation(), "stats"),
+                TimeUnit.MINUTES.toSeconds(ConfigFile.getInt("settings", "stats_timeout", DEFAULT_STATS_TIMEOUT_MINUTES)));
+
+        // Heartbeats are queued from now on, they are sent once the bootstrap is done
+        SwingUtilities.invokeLater(() -> checkApiKey(parent));
+        scheduler.execute(this::bootstrap);
+    }
 
-        Dependencies.configureProxy();
-        checkApiKey(parent);
-
-        if (Dependencies.isPythonInstalled()) {
-            checkCore();
-            setupQueueProcessor();
-            checkDebug();
-            LOG.info("Finished initializing Wakatime plugin");
-        } else {
-            LOG.info("Python not found, downloading python...");
-
-            // download and install python
-            Dependencies.installPython();
-
-            if (Dependencies.isPythonInstalled()) {
-                LOG.info("Finished installing python...");
-
-                checkCore();
-                setupQueueProcessor();
-                checkDebug();
-                LOG.info("Finished initializing Wakatime plugin");
-            } else {
-                System.err.println("Wakatime requires Python to be installed.\nYou can install it from https://www.python.org/downloads/\nAfter installing Python, restart your IDE.");
-            }
-        }
+    /**
+     * Creates an instance that sends through {@code sender} right away, without the API key prompt, the spool and
+     * the dependencies bootstrap. Used to run the heartbeats pipeline outside of the IDE.
+     */
+    Wakatime(@NotNull HeartbeatSender sender) {
+        this.sender = sender;
+        setupQueueProcessor();
+        setState(State.READY);
     }
 
     private static void setupDebugging() {
@@ -80,13 +102,13 @@ public class Wakatime {
     }
 
     @NotNull
-    private static String obfuscateKey(@NotNull String key) {
+    static String obfuscateKey(@NotNull String key) {
         if (key.isEmpty()) return "";
         return key.length() > 4 ? "XXXXXXXX-XXXX-XXXX-XXXX-XXXXXXXX" + key.substring(key.length() - 4) : key;
     }
 
     @NotNull
-    private static String[] obfuscateKey(@NotNull String[] cmds) {
+    static String[] obfuscateKey(@NotNull String[] cmds) {
         ArrayList<String> newCmds = new ArrayList<>();
         String lastCmd = "";
         for (String cmd : cmds) {
@@ -99,7 +121,7 @@ public class Wakatime {
     }
 
     @NotNull
-    private static String getApiKey() {
+    static String getApiKey() {
         String apiKey = ConfigFile.get("settings", "api_key");
         if (apiKey == null) apiKey = "";
         return apiKey;
@@ -121,147 +143,220 @@ public class Wakatime {
         }
     }
 
-    private static long getCurrentTimestamp() {
-        return System.currentTimeMillis() / 1000;
+    @NotNull
+    static String getPluginName() {
+        return IDE_NAME + " processing-wakatime/" + VERSION;
     }
 
-    void showApiKeyPrompt(@NotNull Component parent) {
-        String newKey = (String) JOptionPane.showInputDialog(parent, "Set Wakatime API key",
-                "Wakatime API key", JOptionPane.QUESTION_MESSAGE, null, null, getApiKey());
-
-        if (isApiKeyValid(newKey)) ConfigFile.set("settings", "api_key", newKey);
+    static boolean isDebug() {
+        return DEBUG;
     }
 
-    void appendHeartbeat(String project, String path, Mode mode, boolean isWrite) {
-        if (!isWrite && path.equals(lastFile) && !enoughTimePassed())
-            return;
-
-        lastFile = path;
-        lastTime = getCurrentTimestamp();
+    private static long getCurrentTimestamp() {
+        return System.currentTimeMillis() / 1000;
+    }
 
-        String language;
+    @NotNull
+    private static String languageOf(@NotNull Mode mode) {
         switch (mode.getDefaultExtension()) {
             case "pde":
             case "java":
-                language = "Java";
-                break;
+                return "Java";
             case "pyde":
-                language = "Python";
-                break;
+                return "Python";
             case "js":
-                language = "JavaScript";
-                break;
+                return "JavaScript";
             case "coffee":
-                language = "CoffeeScript";
-                break;
+                return "CoffeeScript";
             default:
-                language = "Unknown";
-                break;
+                return "Unknown";
         }
+    }
+
+    void showApiKeyPrompt(@NotNull Component parent) {
+        String newKey = (String) JOptionPane.showInputDialog(parent, "Set Wakatime API key",
+                "Wakatime API key", JOptionPane.QUESTION_MESSAGE, null, null, getApiKey());
 
-        heartbeatsQueue.add(new Heartbeat(path, lastTime, isWrite, project, language));
+        if (isApiKeyValid(newKey)) ConfigFile.set("settings", "api_key", newKey);
     }
 
-    private void processHeartbeatQueue() {
-        Heartbeat heartbeat = heartbeatsQueue.poll();
-        if (heartbeat == null)
-            return;
+    void appendHeartbeat(String project, String path, Mode mode, boolean isWrite) {
+        appendHeartbeat(project, path, mode, isWrite, getCurrentTimestamp());
+    }
 
-        List<Heartbeat> extraHeartbeats = new ArrayList<>();
-        while (true) {
-            Heartbeat h = heartbeatsQueue.poll();
-            if (h == null) break;
-            extraHeartbeats.add(h);
-        }
+    void appendHeartbeat(String project, String path, Mode mode, boolean isWrite, long timestamp) {
+        appendHeartbeat(project, path, mode, isWrite, timestamp, -1, -1);
+    }
 
-        sendHeartbeat(heartbeat, extraHeartbeats);
+    void appendHeartbeat(String project, String path, Mode mode, boolean isWrite, long timestamp, int lineno, int cursorpos) {
+        appendHeartbeat(project, path, languageOf(mode), isWrite, timestamp, lineno, cursorpos);
     }
 
-    private void sendHeartbeat(Heartbeat heartbeat, List<Heartbeat> extraHeartbeats) {
-        String[] cmd = buildCliCommand(heartbeat, extraHeartbeats);
-        LOG.config("Executing CLI: " + Arrays.toString(obfuscateKey(cmd)));
+    /**
+     * Queues a heartbeat, the file metadata is looked up here so this shouldn't be called from the EDT.
+     *
+     * @param modeLanguage The language of the sketch mode, used if the file extension isn't known
+     * @param lineno       The 1-based line of the cursor, {@code -1} if unknown
+     * @param cursorpos    The offset of the cursor in the file, {@code -1} if unknown
+     */
+    void appendHeartbeat(String project, String path, @NotNull String modeLanguage, boolean isWrite, long timestamp, int lineno, int cursorpos) {
+        if (!throttle.shouldSend(project, path, timestamp, isWrite)) {
+            metrics.heartbeatThrottled();
+            return;
+        }
+
+        EntityMetadataCache.Metadata metadata = metadataCache.get(path);
+        String language = metadata.language != null ? metadata.language : modeLanguage;
 
-        try {
-            Process process = Runtime.getRuntime().exec(cmd);
-            if (extraHeartbeats.size() > 0) {
-                JsonArray array = new JsonArray(extraHeartbeats.size());
-                for (Heartbeat h : extraHeartbeats) {
-                    JsonObject obj = new JsonObject();
-                    array.add(obj);
-
-                    obj.addProperty("entity", h.entity);
-                    obj.addProperty("timestamp", h.timestamp);
-                    obj.addProperty("is_write", h.isWrite);
-                    if (h.project != null) obj.addProperty("project", h.project);
-                    if (h.language != null) obj.addProperty("language", h.language);
-                }
+        int size;
+        synchronized (heartbeatsQueue) {
+            heartbeatsQueue.add(path, timestamp, isWrite, project, language, metadata.branch, lineno, cursorpos, metadata.lines);
+            size = heartbeatsQueueSize.incrementAndGet();
 
-                String json = array.toString();
-                LOG.config(json);
-                try (BufferedWriter stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()))) {
-                    stdin.write(json);
-                    stdin.write("\n");
-                    stdin.flush();
-                } catch (IOException e) {
-                    LOG.log(Level.WARNING, null, e);
+            if (spool != null) {
+                try {
+                    spool.append(heartbeatsQueue, heartbeatsQueue.size() - 1);
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "Failed writing heartbeat to spool, keeping heartbeats in memory only.", ex);
+                    closeSpool();
                 }
             }
+        }
 
-            if (Wakatime.DEBUG) {
-                BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                BufferedReader stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-                process.waitFor();
+        metrics.heartbeatEnqueued();
 
-                String s;
-                while ((s = stdout.readLine()) != null)
-                    LOG.config(s);
+        FlushScheduler flusher = this.flusher;
+        if (flusher == null)
+            return;
 
-                while ((s = stderr.readLine()) != null)
-                    LOG.config(s);
+        if (size >= maxBatchSize) flusher.schedule(0, TimeUnit.SECONDS);
+        else if (isWrite) flusher.schedule(writeFlushSeconds, TimeUnit.SECONDS);
+        else flusher.schedule(maxAgeSeconds, TimeUnit.SECONDS);
+    }
 
-                LOG.config("Command finished with return value: " + process.exitValue());
-            }
-        } catch (Exception ex) {
-            LOG.log(Level.WARNING, null, ex);
-        }
+    /**
+     * Runs a flush on the scheduler and waits for it to return, the batch may still be in flight afterwards. Used
+     * to drive the heartbeats pipeline outside of the IDE.
+     */
+    void flush() throws InterruptedException, ExecutionException {
+        scheduler.submit(this::processHeartbeatQueue).get();
     }
 
-    @NotNull
-    private String[] buildCliCommand(@NotNull Heartbeat heartbeat, @NotNull List<Heartbeat> extraHeartbeats) {
-        ArrayList<String> cmd = new ArrayList<>();
-        cmd.add(Dependencies.getPythonLocation());
-        cmd.add(Dependencies.getCLILocation());
-        cmd.add("--entity");
-        cmd.add(heartbeat.entity);
-        cmd.add("--time");
-        cmd.add(String.valueOf(heartbeat.timestamp));
-        cmd.add("--key");
-        cmd.add(getApiKey());
-
-        if (heartbeat.project != null) {
-            cmd.add("--project");
-            cmd.add(heartbeat.project);
+    private void processHeartbeatQueue() {
+        if (sending || paused || !checkLeadership())
+            return;
+
+        long backoff = breaker.remainingDelay();
+        if (backoff > 0) {
+            flusher.schedule(backoff, TimeUnit.MILLISECONDS);
+            return;
         }
 
-        if (heartbeat.language != null) {
-            cmd.add("--language");
-            cmd.add(heartbeat.language);
+        if (breaker.isOpen() && !breaker.probe()) {
+            flusher.schedule(breaker.failed(), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        // Heartbeats from a failed batch are still there and are sent again before the new ones
+        HeartbeatBatch batch = pendingHeartbeats;
+        int fresh = batch.size();
+        if (batch.isEmpty() || pendingSpool == spool) {
+            synchronized (heartbeatsQueue) {
+                int drained = heartbeatsQueue.drainTo(batch, maxBatchSize - batch.size());
+                heartbeatsQueueSize.addAndGet(-drained);
+            }
+
+            pendingSpool = spool;
         }
 
-        cmd.add("--plugin");
-        cmd.add(IDE_NAME + " processing-wakatime/" + VERSION);
+        if (batch.isEmpty() && coordinator != null)
+            drainForeignSpools();
 
-        if (heartbeat.isWrite)
-            cmd.add("--write");
+        if (batch.isEmpty())
+            return;
+
+        if (codingTime != null) codingTime.add(pendingSpool == null ? MEMORY_SOURCE : pendingSpool.name(), batch, fresh);
 
-        if (extraHeartbeats.size() > 0)
-            cmd.add("--extra-heartbeats");
+        // The spool still holds every pending heartbeat, only the compacted copy goes to the sender
+        compactor.compact(batch, compactedHeartbeats);
 
-        return cmd.toArray(new String[0]);
+        sending = true;
+        CompletableFuture<SendResult> result = sender.send(compactedHeartbeats);
+        if (result.isDone()) batchFinished(result);
+        else result.whenComplete((sent, ex) -> scheduler.execute(() -> batchFinished(result)));
     }
 
-    private boolean enoughTimePassed() {
-        return lastTime + FREQUENCY < getCurrentTimestamp();
+    private void batchFinished(@NotNull CompletableFuture<SendResult> future) {
+        sending = false;
+
+        SendResult result;
+        try {
+            result = future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RejectedExecutionException) {
+                result = SendResult.BUSY;
+            } else {
+                LOG.log(Level.WARNING, "Failed sending heartbeats.", ex);
+                result = SendResult.RETRYABLE;
+            }
+        } catch (CancellationException ex) {
+            LOG.log(Level.WARNING, "Failed sending heartbeats.", ex);
+            result = SendResult.RETRYABLE;
+        }
+
+        HeartbeatBatch batch = pendingHeartbeats;
+        HeartbeatBatch sent = compactedHeartbeats;
+        switch (result) {
+            case SUCCESS:
+            case REJECTED:
+            case HANDED_OFF:
+                long next = 0;
+                if (result == SendResult.SUCCESS) {
+                    breaker.succeeded();
+                    metrics.batchSent(sent.size());
+                } else if (result == SendResult.REJECTED) {
+                    breaker.succeeded();
+                    metrics.batchRejected(sent.size());
+                    LOG.warning("Dropping " + sent.size() + " heartbeats refused by the server.");
+                } else {
+                    // Nothing is lost, but spawning the CLI again is pointless until the endpoint is reachable
+                    metrics.batchSent(sent.size());
+                    next = breaker.failed();
+                    LOG.config("wakatime-cli queued " + sent.size() + " heartbeats offline, next batch in " + next + "ms.");
+                }
+
+                metrics.heartbeatsCompacted(batch.size() - sent.size());
+                boolean foreign = commitSpool(batch.size());
+                batch.clear();
+                sent.clear();
+                if (foreign || heartbeatsQueueSize.get() > 0) flusher.schedule(next, TimeUnit.MILLISECONDS);
+                break;
+            case RETRYABLE:
+                metrics.batchFailed(sent.size());
+                long delay = breaker.failed();
+                LOG.config("Failed sending " + batch.size() + " heartbeats, will retry in " + delay + "ms.");
+                flusher.schedule(delay, TimeUnit.MILLISECONDS);
+                break;
+            case BUSY:
+                // The batch stays pending, the endpoint may be fine so the breaker is left alone
+                flusher.schedule(BUSY_RETRY_SECONDS, TimeUnit.SECONDS);
+                break;
+            case FATAL:
+                metrics.batchFailed(sent.size());
+                paused = true;
+                LOG.warning("Heartbeats were refused because of the configuration, check your API key. Sending is paused until the config file changes.");
+                break;
+            default:
+                throw new IllegalStateException(String.valueOf(result));
+        }
+    }
+
+    private void resume() {
+        if (!paused) return;
+
+        paused = false;
+        LOG.info("Config file changed, resuming sending heartbeats.");
+        flusher.schedule(0, TimeUnit.SECONDS);
     }
 
     private void checkCore() {
@@ -270,9 +365,14 @@ public class Wakatime {
             Dependencies.installCLI();
             LOG.info("Finished downloading and installing wakatime-cli.");
         } else if (Dependencies.isCLIOld()) {
-            LOG.info("Upgrading wakatime-cli...");
-            Dependencies.upgradeCLI();
-            LOG.info("Finished upgrading wakatime-cli.");
+            // The new version is installed next to the current one, which keeps sending in the meantime
+            LOG.info("Upgrading wakatime-cli in the background...");
+            Thread upgrader = new Thread(() -> {
+                Dependencies.upgradeCLI();
+                LOG.info("Finished upgrading wakatime-cli, now at " + Dependencies.getCLILocation());
+            }, "wakatime-cli-upgrade");
+            upgrader.setDaemon(true);
+            upgrader.start();
         } else {
             LOG.info("wakatime-cli is up to date.");
         }
@@ -285,12 +385,247 @@ public class Wakatime {
         LOG.config("Api Key: " + getObfuscatedApiKey());
     }
 
+    /**
+     * Opens a new spool for this instance, heartbeats left in the spools of previous runs are sent by the leader.
+     */
+    private void setupSpool() {
+        SpoolCoordinator coordinator = new SpoolCoordinator(new File(Dependencies.getResourcesLocation(), "spool"));
+        spool = HeartbeatSpool.open(coordinator.ownDirectory());
+        if (spool != null) this.coordinator = coordinator;
+    }
+
+    /**
+     * Only the leader sends, the other instances just append to their spool. When this instance becomes the
+     * leader its queue is rebuilt from the spool, since the previous leader may have sent part of it.
+     *
+     * @return Whether this instance should send
+     */
+    private boolean checkLeadership() {
+        if (leader || coordinator == null || spool == null)
+            return true;
+
+        synchronized (heartbeatsQueue) {
+            heartbeatsQueue.clear();
+            heartbeatsQueueSize.set(0);
+
+            if (!coordinator.tryLead())
+                return false;
+
+            leader = true;
+            pendingHeartbeats.clear();
+
+            try {
+                spool.replay(heartbeatsQueue);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed reading heartbeats spool.", ex);
+            }
+
+            heartbeatsQueueSize.set(heartbeatsQueue.size());
+        }
+
+        return true;
+    }
+
+    /**
+     * Fills the pending batch from the first spool of another instance that has something to send. Spools of
+     * instances that exited are deleted once everything in them has been sent.
+     */
+    private void drainForeignSpools() {
+        for (File dir : coordinator.foreignSpools()) {
+            HeartbeatSpool foreign = HeartbeatSpool.openForeign(dir);
+            if (foreign == null) continue;
+
+            try {
+                int count = foreign.replay(pendingHeartbeats, maxBatchSize);
+                if (count > 0) {
+                    LOG.config("Sending " + count + " heartbeats from " + dir);
+                    pendingSpool = foreign;
+                    return;
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed reading heartbeats spool " + dir, ex);
+            }
+
+            if (foreign.isOwned()) foreign.delete();
+            else foreign.close();
+        }
+    }
+
+    /**
+     * Commits the pending heartbeats to the spool they came from. The uncommitted records of the spool of this
+     * instance are always the pending heartbeats followed by the queue, in order.
+     *
+     * @return Whether they came from the spool of another instance
+     */
+    private boolean commitSpool(int count) {
+        HeartbeatSpool spool = pendingSpool;
+        pendingSpool = null;
+        if (spool == null) return false;
+
+        try {
+            spool.commit(count);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed committing heartbeats spool.", ex);
+        }
+
+        if (spool == this.spool) return false;
+
+        // Heartbeats of other instances are sent one batch at a time, the spool is opened again for the next one
+        spool.close();
+        return true;
+    }
+
+    private void closeSpool() {
+        synchronized (heartbeatsQueue) {
+            if (spool != null) {
+                spool.close();
+                spool = null;
+            }
+        }
+    }
+
+    @NotNull
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The local coding time, {@code null} if it isn't kept
+     */
+    @Nullable
+    CodingTimeStore getCodingTime() {
+        return codingTime;
+    }
+
+    @NotNull
+    State getState() {
+        return state;
+    }
+
+    /**
+     * Registers a listener that is called on every state change, from the thread that caused it.
+     */
+    void addStateListener(@NotNull Consumer<State> listener) {
+        stateListeners.add(listener);
+    }
+
+    void removeStateListener(@NotNull Consumer<State> listener) {
+        stateListeners.remove(listener);
+    }
+
+    private void setState(@NotNull State state) {
+        this.state = state;
+        LOG.config("Wakatime plugin state: " + state);
+        for (Consumer<State> listener : stateListeners) listener.accept(state);
+    }
+
+    private void bootstrap() {
+        try {
+            Dependencies.configureProxy();
+            setupSender();
+
+            if (sender instanceof CliSender) {
+                setState(State.INSTALLING);
+
+                if (!Dependencies.isPythonInstalled()) {
+                    LOG.info("Python not found, downloading python...");
+
+                    // download and install python
+                    Dependencies.installPython();
+
+                    if (!Dependencies.isPythonInstalled()) {
+                        System.err.println("Wakatime requires Python to be installed.\nYou can install it from https://www.python.org/downloads/\nAfter installing Python, restart your IDE.");
+                        setState(State.FAILED);
+                        return;
+                    }
+
+                    LOG.info("Finished installing python...");
+                }
+
+                checkCore();
+            }
+
+            setupQueueProcessor();
+            checkDebug();
+            setState(State.READY);
+            LOG.info("Finished initializing Wakatime plugin");
+        } catch (RuntimeException ex) {
+            LOG.log(Level.SEVERE, "Failed initializing Wakatime plugin.", ex);
+            setState(State.FAILED);
+        }
+    }
+
+    private void setupSender() {
+        String senderType = ConfigFile.get("settings", "sender");
+        if (senderType != null && senderType.trim().equals("http")) {
+            try {
+                sender = new HttpSender();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Cannot use HTTP sender, falling back to wakatime-cli.", ex);
+                sender = new CliSender(metrics);
+            }
+        } else {
+            sender = new CliSender(metrics);
+        }
+
+        LOG.config("Using heartbeat sender: " + sender.getClass().getSimpleName());
+    }
+
     private void setupQueueProcessor() {
-        scheduler.scheduleAtFixedRate(this::processHeartbeatQueue, QUEUE_TIMEOUT_SECONDS, QUEUE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        maxBatchSize = ConfigFile.getInt("settings", "flush_max_batch", DEFAULT_MAX_BATCH_SIZE);
+        maxAgeSeconds = ConfigFile.getInt("settings", "flush_max_age", QUEUE_TIMEOUT_SECONDS);
+        writeFlushSeconds = ConfigFile.getInt("settings", "flush_write_delay", DEFAULT_WRITE_FLUSH_SECONDS);
+        LOG.config("Flushing every " + maxBatchSize + " heartbeats, after " + maxAgeSeconds + "s or " + writeFlushSeconds + "s after a write");
+
+        breaker = createCircuitBreaker();
+        flusher = new FlushScheduler(scheduler, this::processHeartbeatQueue);
+        ConfigFile.addListener(() -> scheduler.execute(this::resume));
+
+        // Followers try to become the leader, the leader looks for heartbeats in the other spools
+        if (coordinator != null)
+            scheduler.scheduleWithFixedDelay(() -> flusher.schedule(0, TimeUnit.SECONDS), maxAgeSeconds, maxAgeSeconds, TimeUnit.SECONDS);
+        if (heartbeatsQueueSize.get() > 0) flusher.schedule(maxAgeSeconds, TimeUnit.SECONDS);
+    }
+
+    @NotNull
+    private static CircuitBreaker createCircuitBreaker() {
+        URL endpoint;
+        try {
+            endpoint = new URL(HttpSender.getApiUrl());
+        } catch (MalformedURLException ex) {
+            LOG.warning("Invalid api_url, probing the default one: " + ex.getMessage());
+
+            try {
+                endpoint = new URL(HttpSender.DEFAULT_API_URL);
+            } catch (MalformedURLException ex1) {
+                throw new IllegalStateException(ex1);
+            }
+        }
+
+        return new CircuitBreaker(endpoint, Dependencies.getProxy());
     }
 
     private void checkDebug() {
         if (Wakatime.DEBUG)
             System.err.println("Running Wakatime in DEBUG mode. Your IDE may be slow when saving or editing files.");
     }
+
+    enum State {
+        /**
+         * Heartbeats are being queued, the sender is being set up
+         */
+        STARTING,
+        /**
+         * Python and wakatime-cli are being checked, downloaded or upgraded
+         */
+        INSTALLING,
+        /**
+         * Heartbeats are being sent
+         */
+        READY,
+        /**
+         * Heartbeats can't be sent, they are only kept in the spool
+         */
+        FAILED
+    }
 }
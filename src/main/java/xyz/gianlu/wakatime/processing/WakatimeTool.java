@@ -3,12 +3,18 @@ package xyz.gianlu.wakatime.processing;
 import org.jetbrains.annotations.NotNull;
 import processing.app.Base;
 import processing.app.Sketch;
+import processing.app.syntax.JEditTextArea;
 import processing.app.tools.Tool;
 import processing.app.ui.Editor;
 
 import javax.swing.*;
-import java.util.ArrayList;
-import java.util.List;
+import javax.swing.event.CaretListener;
+import java.awt.*;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowEvent;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -17,22 +23,34 @@ import java.util.logging.Logger;
 @SuppressWarnings("unused")
 public class WakatimeTool implements Tool {
     private final static Logger LOGGER = Logger.getLogger(WakatimeTool.class.getName());
-    private final List<Editor> knownEditors = new ArrayList<>();
+    private final Map<Editor, Attachment> attachments = new WeakHashMap<>(); // Only accessed from the EDT
     private Base base;
     private Wakatime wakatime;
+    private EditorEventRing events;
+    private StatusDialog status = null;
 
     @Override
     public void init(Base base) {
         this.base = base;
         this.wakatime = new Wakatime(base.getActiveEditor());
-        new Thread(new EditorDiscoverer()).start();
+        this.events = new EditorEventRing(this::appendHeartbeat, wakatime.getMetrics());
+
+        Toolkit.getDefaultToolkit().addAWTEventListener(this::handleWindowEvent, AWTEvent.WINDOW_EVENT_MASK);
+        SwingUtilities.invokeLater(() -> {
+            for (Editor editor : base.getEditors())
+                attachListener(editor);
+        });
 
         LOGGER.info("WakatimeTool initialized!");
     }
 
     @Override
     public void run() {
-        wakatime.showApiKeyPrompt(base.getActiveEditor());
+        if (status == null || !status.isDisplayable())
+            status = new StatusDialog(base.getActiveEditor(), wakatime);
+
+        status.setVisible(true);
+        status.toFront();
     }
 
     @Override
@@ -40,44 +58,91 @@ public class WakatimeTool implements Tool {
         return "Wakatime Tool";
     }
 
-    private void attachListener(@NotNull Editor editor) {
-        editor.getTextArea().addCaretListener(e -> appendHeartbeat(editor.getSketch(), false));
-
-        JMenuBar bar = editor.getJMenuBar();
-        JMenu file = bar.getMenu(0);
-        if (file != null) {
-            JMenuItem save = file.getItem(5);
-            save.addActionListener(e -> appendHeartbeat(editor.getSketch(), true));
-            JMenuItem saveAs = file.getItem(6);
-            saveAs.addActionListener(e -> appendHeartbeat(editor.getSketch(), true));
+    private void handleWindowEvent(@NotNull AWTEvent event) {
+        if (!(event.getSource() instanceof Editor))
+            return;
+
+        Editor editor = (Editor) event.getSource();
+        switch (event.getID()) {
+            case WindowEvent.WINDOW_OPENED:
+            case WindowEvent.WINDOW_ACTIVATED:
+                attachListener(editor);
+                break;
+            case WindowEvent.WINDOW_CLOSED:
+                detachListener(editor);
+                break;
         }
+    }
 
+    private void attachListener(@NotNull Editor editor) {
+        if (attachments.containsKey(editor))
+            return;
+
+        attachments.put(editor, new Attachment(editor));
         LOGGER.config("Attached to " + editor);
     }
 
-    private void appendHeartbeat(@NotNull Sketch sketch, boolean isWrite) {
-        wakatime.appendHeartbeat(sketch.getName(), sketch.getCurrentCode().getFile().getAbsolutePath(), sketch.getMode(), isWrite);
+    private void detachListener(@NotNull Editor editor) {
+        Attachment attachment = attachments.remove(editor);
+        if (attachment == null)
+            return;
+
+        attachment.detach();
+        LOGGER.config("Detached from " + editor);
+    }
+
+    private void appendHeartbeat(@NotNull Sketch sketch, long timestampMillis, boolean isWrite, int lineno, int cursorpos) {
+        wakatime.appendHeartbeat(sketch.getName(), sketch.getCurrentCode().getFile().getAbsolutePath(), sketch.getMode(),
+                isWrite, timestampMillis / 1000, lineno, cursorpos);
     }
 
-    private class EditorDiscoverer implements Runnable {
+    /**
+     * The listeners registered on an editor. Everything belonging to the editor is only weakly referenced,
+     * so that an attachment never keeps a closed editor alive.
+     */
+    private final class Attachment {
+        private final WeakReference<Editor> editor;
+        private final CaretListener caretListener = e -> heartbeat(false);
+        private final ActionListener saveListener = e -> heartbeat(true);
+        private WeakReference<JMenuItem> save = null;
+        private WeakReference<JMenuItem> saveAs = null;
+
+        Attachment(@NotNull Editor editor) {
+            this.editor = new WeakReference<>(editor);
+
+            editor.getTextArea().addCaretListener(caretListener);
 
-        @Override
-        public void run() {
-            if (base == null) return;
+            JMenuBar bar = editor.getJMenuBar();
+            JMenu file = bar.getMenu(0);
+            if (file != null) {
+                JMenuItem save = file.getItem(5);
+                save.addActionListener(saveListener);
+                this.save = new WeakReference<>(save);
 
-            while (true) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
-                }
+                JMenuItem saveAs = file.getItem(6);
+                saveAs.addActionListener(saveListener);
+                this.saveAs = new WeakReference<>(saveAs);
+            }
+        }
 
-                Editor active = base.getActiveEditor();
-                if (active != null && !knownEditors.contains(active)) {
-                    knownEditors.add(active);
-                    attachListener(active);
-                }
+        private void heartbeat(boolean isWrite) {
+            long start = System.nanoTime();
+            Editor editor = this.editor.get();
+            if (editor != null) {
+                JEditTextArea textArea = editor.getTextArea();
+                events.publish(editor.getSketch(), isWrite, textArea.getCaretLine() + 1, textArea.getCaretPosition());
             }
+
+            wakatime.getMetrics().edtCallback(System.nanoTime() - start);
+        }
+
+        void detach() {
+            Editor editor = this.editor.get();
+            if (editor != null) editor.getTextArea().removeCaretListener(caretListener);
+
+            JMenuItem item;
+            if (save != null && (item = save.get()) != null) item.removeActionListener(saveListener);
+            if (saveAs != null && (item = saveAs.get()) != null) item.removeActionListener(saveListener);
         }
     }
 }
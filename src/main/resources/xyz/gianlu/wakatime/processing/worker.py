@@ -0,0 +1,56 @@
+# Long-lived driver for wakatime-cli, spawned by processing-wakatime.
+#
+# Each request is one JSON line on stdin: {"args": [...], "stdin": true}.
+# The arguments are passed to wakatime.main.execute as if cli.py had been
+# invoked with them. If "stdin" is true, the request is followed by one more
+# line which is what the CLI would have read from its own standard input
+# (the extra heartbeats). After every request a single
+# "<marker> <exit code>" line is written to stdout.
+
+import json
+import os
+import sys
+
+try:
+    from StringIO import StringIO
+except ImportError:
+    from io import StringIO
+
+MARKER = '__wakatime_worker_exit__'
+
+sys.path.insert(0, os.path.dirname(os.path.dirname(os.path.abspath(sys.argv[1]))))
+from wakatime.main import execute
+
+real_stdin = sys.stdin
+real_stdout = sys.stdout
+
+real_stdout.write(MARKER + ' ready\n')
+real_stdout.flush()
+
+while True:
+    line = real_stdin.readline()
+    if not line:
+        break
+
+    try:
+        request = json.loads(line)
+    except ValueError:
+        real_stdout.write(MARKER + ' 1\n')
+        real_stdout.flush()
+        continue
+
+    payload = real_stdin.readline() if request.get('stdin') else ''
+    sys.stdin = StringIO(payload)
+    try:
+        code = execute(request['args'])
+    except SystemExit as e:
+        code = e.code if isinstance(e.code, int) else 1
+    except Exception as e:
+        sys.stderr.write(repr(e) + '\n')
+        code = 1
+    finally:
+        sys.stdin = real_stdin
+        sys.stdout = real_stdout
+
+    real_stdout.write('%s %d\n' % (MARKER, code or 0))
+    real_stdout.flush()
@@ -0,0 +1,98 @@
+package xyz.gianlu.wakatime.processing;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+import static org.junit.Assert.assertEquals;
+
+public class CodingTimeStoreTest {
+    private static final long TIMEOUT = 15 * 60;
+    private static final LocalDate DAY = LocalDate.of(2020, 3, 10);
+    private static final long NOON = DAY.atTime(12, 0).atZone(ZoneId.systemDefault()).toEpochSecond();
+    private final HeartbeatBatch.Dictionary dictionary = new HeartbeatBatch.Dictionary();
+    private File dir;
+
+    @NotNull
+    private HeartbeatBatch batch(@NotNull String entity, long... offsets) {
+        HeartbeatBatch batch = new HeartbeatBatch(dictionary);
+        for (long offset : offsets) batch.add(entity, NOON + offset, false, "Sketch", "Java");
+        return batch;
+    }
+
+    private long total(@NotNull CodingTimeStore store) {
+        return store.summary(DAY, DAY).getTotal();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("stats").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void countsEveryInstanceOnItsOwn() {
+        CodingTimeStore store = new CodingTimeStore(dir, TIMEOUT);
+        store.add("instance-a", batch("a.pde", 0, 60, 120), 0);
+
+        // The leader gets to the spool of the other instance after its own heartbeats
+        store.add("instance-b", batch("b.pde", 30, 90), 0);
+
+        CodingTimeStore.Summary summary = store.summary(DAY, DAY);
+        assertEquals(180, summary.getTotal());
+        assertEquals(120, (long) summary.getFiles().get("a.pde"));
+        assertEquals(60, (long) summary.getFiles().get("b.pde"));
+    }
+
+    @Test
+    public void skipsReplayedHeartbeats() {
+        CodingTimeStore store = new CodingTimeStore(dir, TIMEOUT);
+        store.add("instance-a", batch("a.pde", 0, 60), 0);
+        store.add("instance-b", batch("b.pde", 30, 90), 0);
+        store.add("instance-a", batch("a.pde", 0, 60), 0);
+        store.add("instance-b", batch("b.pde", 90), 0);
+        assertEquals(120, total(store));
+    }
+
+    @Test
+    public void carriesOnWhenAnotherInstanceLeads() {
+        CodingTimeStore first = new CodingTimeStore(dir, TIMEOUT);
+        first.add("instance-a", batch("a.pde", 0, 60), 0);
+        first.add("instance-b", batch("b.pde", 30), 0);
+
+        CodingTimeStore second = new CodingTimeStore(dir, TIMEOUT);
+        second.add("instance-b", batch("b.pde", 90), 0);
+        second.add("instance-a", batch("a.pde", 120, 121 + TIMEOUT), 0);
+        assertEquals(180, total(second));
+    }
+
+    @Test
+    public void keepsEveryInstanceAcrossMidnight() {
+        CodingTimeStore store = new CodingTimeStore(dir, TIMEOUT);
+        store.add("instance-a", batch("a.pde", 12 * 3600 - 30), 0);
+        store.add("instance-b", batch("b.pde", 12 * 3600 + 10), 0);
+        store.add("instance-a", batch("a.pde", 12 * 3600 + 30), 0);
+        assertEquals(60, total(store));
+    }
+
+    @Test
+    public void countsFromTheFirstFreshHeartbeat() {
+        CodingTimeStore store = new CodingTimeStore(dir, TIMEOUT);
+        store.add("instance-a", batch("a.pde", 0, 60, 120), 2);
+        store.add("instance-a", batch("a.pde", 180), 0);
+        assertEquals(60, total(store));
+    }
+}